@@ -1,5 +1,6 @@
 #include <jni.h>
 #include <time.h>
+#include <pthread.h>
 #include <android/log.h>
 #include <android/bitmap.h>
 
@@ -14,28 +15,126 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-fz_colorspace *colorspace;
-fz_glyph_cache *glyphcache;
-pdf_xref *xref;
-int pagenum = 1;
+typedef struct pdf_document_s pdf_document;
+typedef struct page_entry_s page_entry;
+
+//a parsed page, so revisiting it can go straight to fz_execute_display_list
+struct page_entry_s
+{
+	int pagenum;
+	fz_display_list *list;
+	pdf_link *links;
+	fz_rect mediabox;
+	int rotate;
+	int size;
+	page_entry *prev, *next;
+};
+
+//everything that belongs to one open file, so several documents can be live at once
+struct pdf_document_s
+{
+	pthread_mutex_t lock;
+	pdf_xref *xref;
+	fz_glyph_cache *glyphcache;
+
+	//LRU of parsed pages, most recently used first, with a lookup by page number
+	page_entry **pages;
+	page_entry *mru, *lru;
+	int cacheSize;
+	int cacheBudget;
+	int cacheHits;
+	int cacheMisses;
+
+	//built the first time a link is resolved: every named destination, and the page
+	//	index of each page object number as (num, index) pairs sorted by num
+	fz_obj *dests;
+	int *pageNums;
+};
+
+#define DEFAULT_CACHE_BUDGET (16 << 20)
+
+//mupdf shares the freetype library between documents: its reference count, font
+//	loading and the rasterizer glyphs are drawn with. So anything that may load, draw
+//	or drop a font (loading, running or freeing a page, freeing a document) holds this
+//	lock, always taken after the document's own
+static pthread_mutex_t load_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_once_t accelerate_once = PTHREAD_ONCE_INIT;
+
 int resolution = 160;
-float pageWidth = 100;
-float pageHeight = 100;
-fz_display_list *currentPageList;
-fz_rect currentMediabox;
-int currentRotate;
 
 void android_error(const char *msg)
 {
 	LOGE(msg);
 }
 
-JNIEXPORT int JNICALL Java_cam_pdftab_PdfCore_openFile(JNIEnv *env, jobject thiz, jstring jfilename)
+static pdf_document *document_from_handle(jlong handle)
+{
+	return (pdf_document *)(intptr_t)handle;
+}
+
+static fz_rect page_mediabox(fz_obj *pageobj)
+{
+	fz_rect mediabox;
+	fz_bbox bbox;
+	fz_obj *obj;
+
+	//same rules as pdf_load_page, but without loading the page contents
+	obj = fz_dict_gets(pageobj, "MediaBox");
+	bbox = fz_round_rect(pdf_to_rect(obj));
+	if(fz_is_empty_rect(pdf_to_rect(obj)))
+	{
+		bbox.x0 = 0;
+		bbox.y0 = 0;
+		bbox.x1 = 612;
+		bbox.y1 = 792;
+	}
+
+	obj = fz_dict_gets(pageobj, "CropBox");
+	if(fz_is_array(obj))
+		bbox = fz_intersect_bbox(bbox, fz_round_rect(pdf_to_rect(obj)));
+
+	mediabox.x0 = MIN(bbox.x0, bbox.x1);
+	mediabox.y0 = MIN(bbox.y0, bbox.y1);
+	mediabox.x1 = MAX(bbox.x0, bbox.x1);
+	mediabox.y1 = MAX(bbox.y0, bbox.y1);
+
+	if(mediabox.x1 - mediabox.x0 < 1 || mediabox.y1 - mediabox.y0 < 1)
+		mediabox = fz_unit_rect;
+
+	return mediabox;
+}
+
+//matrix that maps the page into a pageW x pageH pixel area
+static fz_matrix page_ctm(fz_rect mediabox, int rotate, int pageW, int pageH)
+{
+	float zoom;
+	fz_matrix ctm;
+	fz_bbox bbox;
+	float xscale, yscale;
+
+	zoom = resolution / 72;
+	ctm = fz_translate(-mediabox.x0, -mediabox.y1);
+	ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
+	ctm = fz_concat(ctm, fz_rotate(rotate));
+	bbox = fz_round_rect(fz_transform_rect(ctm, mediabox));
+
+	//now, adjust ctm so that it would give the correct page width heights.
+	xscale = (float)pageW / (float)(bbox.x1 - bbox.x0);
+	yscale = (float)pageH / (float)(bbox.y1 - bbox.y0);
+	return fz_concat(ctm, fz_scale(xscale, yscale));
+}
+
+static void accelerate(void)
+{
+	fz_accelerate();
+}
+
+JNIEXPORT jlong JNICALL Java_cam_pdftab_PdfCore_openFile(JNIEnv *env, jclass cls, jstring jfilename)
 {
 	const char *filename;
 	char *password = "";
 	fz_error error;
-	int pages;
+	pdf_document *doc;
 
 	filename = (*env)->GetStringUTFChars(env, jfilename, NULL);
 	if(filename == NULL)
@@ -44,260 +143,1060 @@ JNIEXPORT int JNICALL Java_cam_pdftab_PdfCore_openFile(JNIEnv *env, jobject thiz
 		return 0;
 	}
 
-	fz_accelerate();
-	glyphcache = fz_new_glyph_cache();
-	colorspace = fz_device_bgr;
+	pthread_once(&accelerate_once, accelerate);
 
-	error = pdf_open_xref(&xref, filename, password);
+	doc = fz_malloc(sizeof(pdf_document));
+	pthread_mutex_init(&doc->lock, NULL);
+	doc->xref = NULL;
+	doc->glyphcache = fz_new_glyph_cache();
+	doc->pages = NULL;
+	doc->mru = NULL;
+	doc->lru = NULL;
+	doc->cacheSize = 0;
+	doc->cacheBudget = DEFAULT_CACHE_BUDGET;
+	doc->cacheHits = 0;
+	doc->cacheMisses = 0;
+	doc->dests = NULL;
+	doc->pageNums = NULL;
+
+	error = pdf_open_xref(&doc->xref, filename, password);
 	if(error)
 	{
 		LOGE("Cannot open document: '%s'\n", filename);
-		return 0;
+		goto cleanup;
 	}
 
-	error = pdf_load_page_tree(xref);
+	error = pdf_load_page_tree(doc->xref);
 	if(error)
 	{
 		LOGE("Cannot load page tree: '%s'\n", filename);
-		return 0;
+		goto cleanup;
 	}
 
-	pages = pdf_count_pages(xref);
+	doc->pages = fz_calloc(pdf_count_pages(doc->xref) + 1, sizeof(page_entry *));
+
+	(*env)->ReleaseStringUTFChars(env, jfilename, filename);
+	return (jlong)(intptr_t)doc;
+
+cleanup:
+	(*env)->ReleaseStringUTFChars(env, jfilename, filename);
+	if(doc->pages)
+		fz_free(doc->pages);
+	pthread_mutex_lock(&load_lock);
+	if(doc->xref)
+		pdf_free_xref(doc->xref);
+	fz_free_glyph_cache(doc->glyphcache);
+	pthread_mutex_unlock(&load_lock);
+	pthread_mutex_destroy(&doc->lock);
+	fz_free(doc);
+	return 0;
+}
+
+JNIEXPORT jint JNICALL Java_cam_pdftab_PdfCore_countPages(JNIEnv *env, jclass cls, jlong handle)
+{
+	pdf_document *doc = document_from_handle(handle);
+	int pages;
+
+	pthread_mutex_lock(&doc->lock);
+	pages = pdf_count_pages(doc->xref);
+	pthread_mutex_unlock(&doc->lock);
 	return pages;
 }
 
-JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_gotoPageInternal(JNIEnv *env, jobject thiz, int page)
+JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_loadPageSizes(JNIEnv *env, jclass cls,
+	jlong handle, jfloatArray jsizes)
 {
+	pdf_document *doc = document_from_handle(handle);
 	float zoom;
 	fz_matrix ctm;
 	fz_bbox bbox;
+	fz_rect mediabox;
+	fz_obj *pageobj;
+	jfloat *sizes;
+	int i, count;
+
+	sizes = (*env)->GetFloatArrayElements(env, jsizes, NULL);
+	if(sizes == NULL)
+		return;
+
+	pthread_mutex_lock(&doc->lock);
+
+	count = (*env)->GetArrayLength(env, jsizes) / 2;
+	if(count > pdf_count_pages(doc->xref))
+		count = pdf_count_pages(doc->xref);
+
+	zoom = resolution / 72;
+	for(i = 0; i < count; i++)
+	{
+		pageobj = doc->xref->page_objs[i];
+		mediabox = page_mediabox(pageobj);
+		ctm = fz_translate(0, -mediabox.y1);
+		ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
+		ctm = fz_concat(ctm, fz_rotate(fz_to_int(fz_dict_gets(pageobj, "Rotate"))));
+		bbox = fz_round_rect(fz_transform_rect(ctm, mediabox));
+		sizes[i * 2] = bbox.x1 - bbox.x0;
+		sizes[i * 2 + 1] = bbox.y1 - bbox.y0;
+	}
+
+	pthread_mutex_unlock(&doc->lock);
+	(*env)->ReleaseFloatArrayElements(env, jsizes, sizes, 0);
+}
+
+static void size_path(void *user, fz_path *path)
+{
+	*(int *)user += sizeof(fz_path) + path->cap * sizeof(fz_path_item);
+}
+
+static void size_fill_path(void *user, fz_path *path, int even_odd, fz_matrix ctm,
+	fz_colorspace *cs, float *color, float alpha)
+{
+	size_path(user, path);
+}
+
+static void size_stroke_path(void *user, fz_path *path, fz_stroke_state *stroke, fz_matrix ctm,
+	fz_colorspace *cs, float *color, float alpha)
+{
+	size_path(user, path);
+}
+
+static void size_clip_path(void *user, fz_path *path, fz_rect *rect, int even_odd, fz_matrix ctm)
+{
+	size_path(user, path);
+}
+
+static void size_text(void *user, fz_text *text)
+{
+	*(int *)user += sizeof(fz_text) + text->cap * sizeof(fz_text_item);
+}
+
+static void size_fill_text(void *user, fz_text *text, fz_matrix ctm,
+	fz_colorspace *cs, float *color, float alpha)
+{
+	size_text(user, text);
+}
+
+static void size_clip_text(void *user, fz_text *text, fz_matrix ctm, int accumulate)
+{
+	size_text(user, text);
+}
+
+static void size_pixmap(void *user, fz_pixmap *img)
+{
+	*(int *)user += sizeof(fz_pixmap) + img->w * img->h * img->n;
+	if(img->mask)
+		size_pixmap(user, img->mask);
+}
+
+static void size_fill_image(void *user, fz_pixmap *img, fz_matrix ctm, float alpha)
+{
+	size_pixmap(user, img);
+}
+
+static void size_fill_image_mask(void *user, fz_pixmap *img, fz_matrix ctm,
+	fz_colorspace *cs, float *color, float alpha)
+{
+	size_pixmap(user, img);
+}
+
+//rough memory use of a display list, the decoded images are what really counts
+static int display_list_size(fz_display_list *list)
+{
+	int size = 0;
+	fz_device *dev = fz_new_device(&size);
+
+	dev->fill_path = size_fill_path;
+	dev->stroke_path = size_stroke_path;
+	dev->clip_path = size_clip_path;
+	dev->fill_text = size_fill_text;
+	dev->clip_text = size_clip_text;
+	dev->fill_image = size_fill_image;
+	dev->fill_image_mask = size_fill_image_mask;
+
+	fz_execute_display_list(list, dev, fz_identity, fz_infinite_bbox);
+	fz_free_device(dev);
+	return size;
+}
+
+//drops the page's fonts, must be called with load_lock held
+static void free_page_entry(page_entry *entry)
+{
+	if(entry->list)
+		fz_free_display_list(entry->list);
+	if(entry->links)
+		pdf_free_link(entry->links);
+	fz_free(entry);
+}
+
+static void unlink_page_entry(pdf_document *doc, page_entry *entry)
+{
+	if(entry->prev)
+		entry->prev->next = entry->next;
+	else
+		doc->mru = entry->next;
+
+	if(entry->next)
+		entry->next->prev = entry->prev;
+	else
+		doc->lru = entry->prev;
+
+	entry->prev = entry->next = NULL;
+}
+
+static void push_page_entry(pdf_document *doc, page_entry *entry)
+{
+	entry->prev = NULL;
+	entry->next = doc->mru;
+	if(doc->mru)
+		doc->mru->prev = entry;
+	doc->mru = entry;
+	if(!doc->lru)
+		doc->lru = entry;
+}
+
+//drop least recently used pages until we fit, but never the most recent one; must be
+//	called with the document lock held, takes load_lock for the frees
+static void trim_page_cache(pdf_document *doc)
+{
+	page_entry *victim;
+
+	if(doc->cacheSize <= doc->cacheBudget)
+		return;
+
+	pthread_mutex_lock(&load_lock);
+	while(doc->cacheSize > doc->cacheBudget && doc->lru && doc->lru != doc->mru)
+	{
+		victim = doc->lru;
+		unlink_page_entry(doc, victim);
+		doc->pages[victim->pagenum] = NULL;
+		doc->cacheSize -= victim->size;
+		free_page_entry(victim);
+	}
+	pthread_mutex_unlock(&load_lock);
+}
+
+//must be called with the document lock held
+static page_entry *load_page_entry(pdf_document *doc, int page)
+{
 	fz_error error;
 	fz_device *dev;
 	pdf_page *currentPage;
+	page_entry *entry;
 	clock_t end, start = clock();
 
-	//In the event of an error, ensure we give a non-empty page
-	pageWidth = 100;
-	pageHeight = 100;
+	if(page < 0 || page >= pdf_count_pages(doc->xref))
+		return NULL;
+
+	entry = doc->pages[page];
+	if(entry)
+	{
+		doc->cacheHits++;
+		unlink_page_entry(doc, entry);
+		push_page_entry(doc, entry);
+		return entry;
+	}
 
+	doc->cacheMisses++;
 	LOGE("Goto page %d...", page);
-	if(currentPageList != NULL)
+
+	pthread_mutex_lock(&load_lock);
+
+	error = pdf_load_page(&currentPage, doc->xref, page);
+	if(error)
 	{
-		fz_free_display_list(currentPageList);
-		currentPageList = NULL;
+		pthread_mutex_unlock(&load_lock);
+		return NULL;
 	}
 
-	pagenum = page;
-	error = pdf_load_page(&currentPage, xref, pagenum);
-	if(error) return;
+	entry = fz_malloc(sizeof(page_entry));
+	entry->pagenum = page;
+	entry->mediabox = currentPage->mediabox;
+	entry->rotate = currentPage->rotate;
+	entry->prev = entry->next = NULL;
 
-	zoom = resolution / 72;
-	currentMediabox = currentPage->mediabox;
-	currentRotate = currentPage->rotate;
-	ctm = fz_translate(0, -currentMediabox.y1);
-	ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
-	ctm = fz_concat(ctm, fz_rotate(currentRotate));
-	bbox = fz_round_rect(fz_transform_rect(ctm, currentMediabox));
-	pageWidth = bbox.x1 - bbox.x0;
-	pageHeight = bbox.y1 - bbox.y0;
+	//keep the links, they belong to the page and not the display list
+	entry->links = currentPage->links;
+	currentPage->links = NULL;
 
 	//render
-	currentPageList = fz_new_display_list();
-	dev = fz_new_list_device(currentPageList);
-	error = pdf_run_page(xref, currentPage, dev, fz_identity);
+	entry->list = fz_new_display_list();
+	dev = fz_new_list_device(entry->list);
+	error = pdf_run_page(doc->xref, currentPage, dev, fz_identity);
 	pdf_free_page(currentPage);
+	fz_free_device(dev);
+
+	pthread_mutex_unlock(&load_lock);
 
 	if(error)
-		LOGE("cannot make displaylist from page %d", pagenum);
+		LOGE("cannot make displaylist from page %d", page);
+
+	entry->size = sizeof(page_entry) + display_list_size(entry->list);
+	doc->pages[page] = entry;
+	doc->cacheSize += entry->size;
+	push_page_entry(doc, entry);
+	trim_page_cache(doc);
 
-	fz_free_device(dev);
 	end = clock();
-	LOGE("Load = %10.7fms", (1000.0 * ((double)(end - start))) / CLOCKS_PER_SEC);
+	LOGE("Load = %10.7fms, %d bytes", (1000.0 * ((double)(end - start))) / CLOCKS_PER_SEC, entry->size);
+	return entry;
 }
 
-JNIEXPORT float JNICALL Java_cam_pdftab_PdfCore_getPageWidth(JNIEnv *env, jobject thiz)
+JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_setPageCacheBudget(JNIEnv *env, jclass cls,
+	jlong handle, jint bytes)
 {
-	return pageWidth;
+	pdf_document *doc = document_from_handle(handle);
+
+	pthread_mutex_lock(&doc->lock);
+	doc->cacheBudget = bytes;
+	trim_page_cache(doc);
+	pthread_mutex_unlock(&doc->lock);
 }
 
-JNIEXPORT float JNICALL Java_cam_pdftab_PdfCore_getPageHeight(JNIEnv *env, jobject thiz)
+/* Title, Author, ... from the document info dictionary, or null if it isn't there */
+JNIEXPORT jstring JNICALL Java_cam_pdftab_PdfCore_getMetadata(JNIEnv *env, jclass cls,
+	jlong handle, jstring jkey)
 {
-	return pageHeight;
+	pdf_document *doc = document_from_handle(handle);
+	const char *key;
+	fz_obj *info, *obj;
+	char *value = NULL;
+	jstring result = NULL;
+
+	key = (*env)->GetStringUTFChars(env, jkey, NULL);
+	if(key == NULL)
+		return NULL;
+
+	pthread_mutex_lock(&doc->lock);
+	info = fz_dict_gets(doc->xref->trailer, "Info");
+	obj = fz_dict_gets(info, (char *)key);
+	if(fz_is_string(obj))
+		value = pdf_to_utf8(obj);
+	pthread_mutex_unlock(&doc->lock);
+
+	(*env)->ReleaseStringUTFChars(env, jkey, key);
+
+	if(value != NULL)
+	{
+		result = (*env)->NewStringUTF(env, value);
+		fz_free(value);
+	}
+	return result;
 }
 
-JNIEXPORT jint JNICALL Java_cam_pdftab_PdfCore_findLink(JNIEnv *env, jobject thiz,
-	int pnum, int pageW, int pageH, int patchX, int patchY, int patchW, int patchH, int x, int y)
+static int compare_page_nums(const void *a, const void *b)
 {
-	float zoom;
+	return ((const int *)a)[0] - ((const int *)b)[0];
+}
+
+//the page index of a page object, a binary search in a table built on first use
+//	instead of pdf_find_page_number's walk over every page
+static int find_page(pdf_document *doc, fz_obj *pageobj)
+{
+	int count = pdf_count_pages(doc->xref);
+	int num = fz_to_num(pageobj);
+	int l, r, m, i;
+
+	if(doc->pageNums == NULL)
+	{
+		doc->pageNums = malloc(sizeof(int) * 2 * (count + 1));
+		if(doc->pageNums == NULL)
+			return pdf_find_page_number(doc->xref, pageobj);
+
+		for(i = 0; i < count; i++)
+		{
+			doc->pageNums[i * 2] = fz_to_num(doc->xref->page_refs[i]);
+			doc->pageNums[i * 2 + 1] = i;
+		}
+		qsort(doc->pageNums, count, sizeof(int) * 2, compare_page_nums);
+	}
+
+	l = 0;
+	r = count - 1;
+	while(l <= r)
+	{
+		m = (l + r) / 2;
+		if(doc->pageNums[m * 2] < num)
+			l = m + 1;
+		else if(doc->pageNums[m * 2] > num)
+			r = m - 1;
+		else
+			return doc->pageNums[m * 2 + 1];
+	}
+	return -1;
+}
+
+//every named destination of the document in one sorted dictionary, from the name
+//	tree (pdf 1.2) and the old /Dests dictionary (pdf 1.1), read once per document
+static fz_obj *load_dests(pdf_document *doc)
+{
+	fz_obj *root, *old;
+	int i;
+
+	if(doc->dests)
+		return doc->dests;
+
+	doc->dests = pdf_load_name_tree(doc->xref, "Dests");
+	if(doc->dests == NULL)
+		doc->dests = fz_new_dict(16);
+
+	root = fz_dict_gets(doc->xref->trailer, "Root");
+	old = fz_dict_gets(root, "Dests");
+	if(fz_is_dict(old))
+	{
+		for(i = 0; i < fz_dict_len(old); i++)
+			fz_dict_put(doc->dests, fz_dict_get_key(old, i), fz_dict_get_val(old, i));
+	}
+
+	//lookups are a binary search only if it is sorted
+	fz_sort_dict(doc->dests);
+	LOGI("%d named destinations", fz_dict_len(doc->dests));
+	return doc->dests;
+}
+
+//a destination down to its explicit [page /XYZ left top zoom] array, through the
+//	named destination table and /D dictionaries
+static fz_obj *resolve_dest_array(pdf_document *doc, fz_obj *dest)
+{
+	fz_obj *key;
+	int depth;
+
+	//a few levels at most, and a broken file can't send us round in circles
+	for(depth = 0; depth < 8 && dest; depth++)
+	{
+		if(fz_is_array(dest))
+			return dest;
+		else if(fz_is_dict(dest))
+			dest = fz_dict_gets(dest, "D");
+		else if(fz_is_name(dest))
+			dest = fz_dict_get(load_dests(doc), dest);
+		else if(fz_is_string(dest))
+		{
+			key = pdf_to_utf8_name(dest);
+			dest = fz_dict_get(load_dests(doc), key);
+			fz_drop_obj(key);
+		}
+		else
+			return NULL;
+	}
+	return NULL;
+}
+
+//maps a page's user space into the page units java lays it out in
+static fz_matrix page_unit_ctm(fz_obj *pageobj)
+{
+	fz_rect mediabox = page_mediabox(pageobj);
+	float zoom = resolution / 72;
 	fz_matrix ctm;
-	float xscale, yscale;
-	fz_bbox bbox;
-	pdf_link *link;
-	fz_point p;
+
+	ctm = fz_translate(-mediabox.x0, -mediabox.y1);
+	ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
+	return fz_concat(ctm, fz_rotate(fz_to_int(fz_dict_gets(pageobj, "Rotate"))));
+}
+
+//the page a destination goes to, -1 if it isn't a page of this document, and where on
+//	that page in page units (-1 if the destination doesn't say)
+static int dest_target(pdf_document *doc, fz_obj *dest, float *x, float *y)
+{
+	fz_obj *pageobj, *left = NULL, *top = NULL;
 	fz_rect mediabox;
-	pdf_page *page;
-	int rotate, ret = -1;
+	fz_point p;
+	char *fit;
+	int page;
+
+	*x = -1;
+	*y = -1;
 
-	if(!pdf_load_page(&page, xref, pnum))
+	dest = resolve_dest_array(doc, dest);
+	if(dest == NULL)
+		return -1;
+
+	pageobj = fz_array_get(dest, 0);
+	if(fz_is_int(pageobj))
+		page = fz_to_int(pageobj);
+	else
+		page = find_page(doc, pageobj);
+	if(page < 0 || page >= pdf_count_pages(doc->xref))
+		return -1;
+
+	fit = fz_to_name(fz_array_get(dest, 1));
+	if(!strcmp(fit, "XYZ"))
+	{
+		left = fz_array_get(dest, 2);
+		top = fz_array_get(dest, 3);
+	}
+	else if(!strcmp(fit, "FitH") || !strcmp(fit, "FitBH"))
+		top = fz_array_get(dest, 2);
+	else if(!strcmp(fit, "FitV") || !strcmp(fit, "FitBV"))
+		left = fz_array_get(dest, 2);
+	else if(!strcmp(fit, "FitR"))
 	{
-		p.x = x;
-		p.y = y;
+		left = fz_array_get(dest, 2);
+		top = fz_array_get(dest, 5);
+	}
 
-		mediabox = page->mediabox;
-		rotate = page->rotate;
+	//null (or missing) coordinates mean keep the current one, top left will do
+	if(!fz_is_int(left) && !fz_is_real(left))
+		left = NULL;
+	if(!fz_is_int(top) && !fz_is_real(top))
+		top = NULL;
+	if(left == NULL && top == NULL)
+		return page;
 
-		zoom = resolution / 72;
-		ctm = fz_translate(-mediabox.x0, -mediabox.y1);
-		ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
-		ctm = fz_concat(ctm, fz_rotate(rotate));
-		bbox = fz_round_rect(fz_transform_rect(ctm,mediabox));
+	pageobj = doc->xref->page_objs[page];
+	mediabox = page_mediabox(pageobj);
+	p.x = left ? fz_to_real(left) : mediabox.x0;
+	p.y = top ? fz_to_real(top) : mediabox.y1;
+	p = fz_transform_point(page_unit_ctm(pageobj), p);
 
-		//now, adjust ctm so that it would give the correct page width heights.
-		xscale = (float)pageW / (float)(bbox.x1 - bbox.x0);
-		yscale = (float)pageH / (float)(bbox.y1 - bbox.y0);
-		ctm = fz_concat(ctm, fz_scale(xscale, yscale));
-		bbox = fz_round_rect(fz_transform_rect(ctm, mediabox));
-	
-		ctm = fz_invert_matrix(ctm);
-		p = fz_transform_point(ctm, p);
- 
-		for(link = page->links; link; link = link->next)
+	*x = MAX(0, p.x);
+	*y = MAX(0, p.y);
+	return page;
+}
+
+//the page a goto link lands on, -1 for anything else
+static int link_target_page(pdf_document *doc, pdf_link *link)
+{
+	float x, y;
+
+	if(link->kind != PDF_LINK_GOTO)
+		return -1;
+	return dest_target(doc, link->dest, &x, &y);
+}
+
+//outline entries and the utf-16 length of their titles, children included
+static void count_outline(pdf_outline *node, int *entries, int *chars)
+{
+	for(; node; node = node->next)
+	{
+		(*entries)++;
+		if(node->title)
+			*chars += strlen(node->title);
+		count_outline(node->child, entries, chars);
+	}
+}
+
+//utf-8 to utf-16, at most one jchar per byte so the count above is enough
+static int utf8_to_jchars(const char *src, jchar *dst)
+{
+	const unsigned char *s = (const unsigned char *)src;
+	int n = 0, c;
+
+	while(*s)
+	{
+		if(s[0] < 0x80)
+			c = *s++;
+		else if((s[0] & 0xe0) == 0xc0 && s[1])
+		{
+			c = ((s[0] & 0x1f) << 6) | (s[1] & 0x3f);
+			s += 2;
+		}
+		else if((s[0] & 0xf0) == 0xe0 && s[1] && s[2])
 		{
-			if(p.x >= link->rect.x0 && p.x <= link->rect.x1)
-				if(p.y >= link->rect.y0 && p.y <= link->rect.y1)
-					break;
+			c = ((s[0] & 0x0f) << 12) | ((s[1] & 0x3f) << 6) | (s[2] & 0x3f);
+			s += 3;
 		}
+		else
+		{
+			c = '?';
+			s++;
+		}
+
+		dst[n++] = (c < 32) ? ' ' : c;
+	}
+
+	return n;
+}
+
+//lays the tree out depth first: level, target page (-1 if it isn't a page in this
+//	document) and title of every entry
+static void flatten_outline(pdf_document *doc, pdf_outline *node, int level, int *i,
+	jchar *titles, jint *offsets, jint *levels, jint *pages)
+{
+	for(; node; node = node->next)
+	{
+		levels[*i] = level;
+		pages[*i] = node->link ? link_target_page(doc, node->link) : -1;
 
-		if(link)
-			ret = pdf_find_page_number(xref, fz_array_get(link->dest, 0));
+		offsets[*i + 1] = offsets[*i];
+		if(node->title)
+			offsets[*i + 1] += utf8_to_jchars(node->title, titles + offsets[*i]);
+		(*i)++;
 
-		pdf_free_page(page);
+		flatten_outline(doc, node->child, level + 1, i, titles, offsets, levels, pages);
 	}
+}
 
-	return ret;
+/* The document outline as an Outline, or null if the document has none */
+JNIEXPORT jobject JNICALL Java_cam_pdftab_PdfCore_loadOutline(JNIEnv *env, jclass cls,
+	jlong handle)
+{
+	pdf_document *doc = document_from_handle(handle);
+	pdf_outline *outline;
+	jclass outline_class;
+	jmethodID outline_init;
+	jcharArray jtitles;
+	jintArray joffsets, jlevels, jpages;
+	jchar *titles;
+	jint *offsets, *levels, *pages;
+	jobject result = NULL;
+	int entries = 0, chars = 0, i = 0;
+
+	outline_class = (*env)->FindClass(env, "cam/pdftab/Outline");
+	if(outline_class == NULL)
+		return NULL;
+	outline_init = (*env)->GetMethodID(env, outline_class, "<init>", "([C[I[I[I)V");
+	if(outline_init == NULL)
+		return NULL;
+
+	pthread_mutex_lock(&doc->lock);
+
+	outline = pdf_load_outline(doc->xref);
+	if(outline == NULL)
+	{
+		pthread_mutex_unlock(&doc->lock);
+		return NULL;
+	}
+
+	count_outline(outline, &entries, &chars);
+
+	titles = malloc(sizeof(jchar) * (chars + 1));
+	offsets = malloc(sizeof(jint) * (entries + 1));
+	levels = malloc(sizeof(jint) * (entries + 1));
+	pages = malloc(sizeof(jint) * (entries + 1));
+	if(titles && offsets && levels && pages)
+	{
+		offsets[0] = 0;
+		flatten_outline(doc, outline, 0, &i, titles, offsets, levels, pages);
+	}
+
+	pdf_free_outline(outline);
+	pthread_mutex_unlock(&doc->lock);
+
+	if(!titles || !offsets || !levels || !pages)
+		goto cleanup;
+
+	//same as the text, a few arrays so java gets the whole tree in one call
+	jtitles = (*env)->NewCharArray(env, offsets[entries]);
+	joffsets = (*env)->NewIntArray(env, entries + 1);
+	jlevels = (*env)->NewIntArray(env, entries);
+	jpages = (*env)->NewIntArray(env, entries);
+	if(jtitles && joffsets && jlevels && jpages)
+	{
+		(*env)->SetCharArrayRegion(env, jtitles, 0, offsets[entries], titles);
+		(*env)->SetIntArrayRegion(env, joffsets, 0, entries + 1, offsets);
+		(*env)->SetIntArrayRegion(env, jlevels, 0, entries, levels);
+		(*env)->SetIntArrayRegion(env, jpages, 0, entries, pages);
+		result = (*env)->NewObject(env, outline_class, outline_init,
+			jtitles, joffsets, jlevels, jpages);
+	}
+
+cleanup:
+	free(titles);
+	free(offsets);
+	free(levels);
+	free(pages);
+	return result;
 }
 
-JNIEXPORT jboolean JNICALL Java_cam_pdftab_PdfCore_drawPage(JNIEnv *env, jobject thiz,
-	jintArray buf, int pageW, int pageH, int patchX, int patchY, int patchW, int patchH,
-	jobject text_data)
+JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_getPageCacheStats(JNIEnv *env, jclass cls,
+	jlong handle, jintArray jstats)
 {
-	int ret;
-	fz_error error;
-	fz_device *dev;
-	float zoom;
+	pdf_document *doc = document_from_handle(handle);
+	jint stats[4];
+
+	pthread_mutex_lock(&doc->lock);
+	stats[0] = doc->cacheHits;
+	stats[1] = doc->cacheMisses;
+	stats[2] = doc->cacheSize;
+	stats[3] = doc->cacheBudget;
+	pthread_mutex_unlock(&doc->lock);
+
+	(*env)->SetIntArrayRegion(env, jstats, 0, 4, stats);
+}
+
+/* Every link of the page as a PageLinks: boxes in pageW x pageH pixels, target page
+ *	and position (in page units) or URI. Straight from the page's annotations, so the
+ *	page doesn't have to be parsed, and java can hit test taps without coming back here */
+JNIEXPORT jobject JNICALL Java_cam_pdftab_PdfCore_loadLinks(JNIEnv *env, jclass cls,
+	jlong handle, int pnum, int pageW, int pageH)
+{
+	pdf_document *doc = document_from_handle(handle);
+	fz_obj *pageobj, *annots, *annot, *dest, *action, *obj;
 	fz_matrix ctm;
-	fz_bbox bbox;
-	fz_pixmap *pix;
-	float xscale, yscale;
-	fz_bbox rect;
-	jint *pixels;
-	fz_text_span *text_span, *span;
-	jobjectArray boundArray;
-	jclass text_class = (*env)->GetObjectClass(env, text_data);
-	jmethodID text_set_string, text_add_rect;
-	char *text_content, *ptr;
-	int text_len = 0, i;
+	fz_bbox box;
+	float x, y;
+	char *s;
+	jclass links_class, string_class;
+	jmethodID links_init;
+	jintArray jboxes, jpages, jtargets;
+	jobjectArray juris;
+	jstring juri;
+	jint *boxes = NULL, *pages = NULL, *targets = NULL;
+	char **uris = NULL;
+	jobject result = NULL;
+	int count = 0, annot_count, i, n;
 
-	clock_t end, start = clock();
+	links_class = (*env)->FindClass(env, "cam/pdftab/PageLinks");
+	string_class = (*env)->FindClass(env, "java/lang/String");
+	if(links_class == NULL || string_class == NULL)
+		return NULL;
+	links_init = (*env)->GetMethodID(env, links_class, "<init>", "([I[I[I[Ljava/lang/String;)V");
+	if(links_init == NULL)
+		return NULL;
 
-	//call mupdf to render display list to screen
-	LOGE("Rendering page=%dx%d patch=[%d,%d,%d,%d]", pageW, pageH, patchX, patchY, patchW, patchH);
-	pixels = (*env)->GetPrimitiveArrayCritical(env, buf, 0);
+	pthread_mutex_lock(&doc->lock);
 
-	text_set_string = (*env)->GetMethodID(env, text_class, "setString", "(Ljava/lang/String;)V");
-	text_add_rect = (*env)->GetMethodID(env, text_class, "addRect", "(IIII)V");
+	if(pnum < 0 || pnum >= pdf_count_pages(doc->xref))
+	{
+		pthread_mutex_unlock(&doc->lock);
+		return NULL;
+	}
 
-	rect.x0 = patchX;
-	rect.y0 = patchY;
-	rect.x1 = patchX + patchW;
-	rect.y1 = patchY + patchH;
-	pix = fz_new_pixmap_with_rect_and_data(colorspace, rect, (unsigned char *)pixels);
-	if(currentPageList == NULL)
+	pageobj = doc->xref->page_objs[pnum];
+	annots = fz_dict_gets(pageobj, "Annots");
+	annot_count = fz_array_len(annots);
+
+	boxes = malloc(sizeof(jint) * (annot_count * 4 + 1));
+	pages = malloc(sizeof(jint) * (annot_count + 1));
+	targets = malloc(sizeof(jint) * (annot_count * 2 + 1));
+	uris = calloc(annot_count + 1, sizeof(char *));
+	if(!boxes || !pages || !targets || !uris)
 	{
-		fz_clear_pixmap_with_color(pix, 0xd0);
-		return 0;
+		pthread_mutex_unlock(&doc->lock);
+		goto cleanup;
 	}
-	fz_clear_pixmap_with_color(pix, 0xff);
 
-	zoom = resolution / 72;
-	ctm = fz_translate(-currentMediabox.x0, -currentMediabox.y1);
-	ctm = fz_concat(ctm, fz_scale(zoom, -zoom));
-	ctm = fz_concat(ctm, fz_rotate(currentRotate));
-	bbox = fz_round_rect(fz_transform_rect(ctm,currentMediabox));
+	ctm = page_ctm(page_mediabox(pageobj), fz_to_int(fz_dict_gets(pageobj, "Rotate")), pageW, pageH);
 
-	//now, adjust ctm so that it would give the correct page width heights.
-	xscale = (float)pageW / (float)(bbox.x1 - bbox.x0);
-	yscale = (float)pageH / (float)(bbox.y1 - bbox.y0);
-	ctm = fz_concat(ctm, fz_scale(xscale, yscale));
-	bbox = fz_round_rect(fz_transform_rect(ctm, currentMediabox));
-	LOGE("Rendering scale=%fx%f", xscale, yscale);
+	for(i = 0; i < annot_count; i++)
+	{
+		annot = fz_array_get(annots, i);
+		obj = fz_dict_gets(annot, "Subtype");
+		if(!fz_is_name(obj) || strcmp(fz_to_name(obj), "Link"))
+			continue;
+
+		pages[count] = -1;
+		targets[count * 2] = -1;
+		targets[count * 2 + 1] = -1;
+		x = y = -1;
+
+		dest = fz_dict_gets(annot, "Dest");
+		action = fz_dict_gets(annot, "A");
+		if(dest)
+			pages[count] = dest_target(doc, dest, &x, &y);
+		else if(action)
+		{
+			s = fz_to_name(fz_dict_gets(action, "S"));
+			if(!strcmp(s, "GoTo"))
+				pages[count] = dest_target(doc, fz_dict_gets(action, "D"), &x, &y);
+			else if(!strcmp(s, "URI") && fz_is_string(fz_dict_gets(action, "URI")))
+				uris[count] = pdf_to_utf8(fz_dict_gets(action, "URI"));
+			else if(!strcmp(s, "Named"))
+			{
+				//the named actions every viewer has to support
+				s = fz_to_name(fz_dict_gets(action, "N"));
+				if(!strcmp(s, "NextPage"))
+					pages[count] = pnum + 1;
+				else if(!strcmp(s, "PrevPage"))
+					pages[count] = pnum - 1;
+				else if(!strcmp(s, "FirstPage"))
+					pages[count] = 0;
+				else if(!strcmp(s, "LastPage"))
+					pages[count] = pdf_count_pages(doc->xref) - 1;
+
+				if(pages[count] >= pdf_count_pages(doc->xref))
+					pages[count] = -1;
+			}
+		}
 
-	dev = fz_new_draw_device(glyphcache, pix);
-	fz_execute_display_list(currentPageList, dev, ctm, bbox);
+		//nowhere we can go, it isn't a link for us
+		if(pages[count] < 0 && uris[count] == NULL)
+			continue;
+
+		targets[count * 2] = x;
+		targets[count * 2 + 1] = y;
+
+		box = fz_round_rect(fz_transform_rect(ctm, pdf_to_rect(fz_dict_gets(annot, "Rect"))));
+		boxes[count * 4] = box.x0;
+		boxes[count * 4 + 1] = box.y0;
+		boxes[count * 4 + 2] = box.x1;
+		boxes[count * 4 + 3] = box.y1;
+		count++;
+	}
+
+	pthread_mutex_unlock(&doc->lock);
+
+	jboxes = (*env)->NewIntArray(env, count * 4);
+	jpages = (*env)->NewIntArray(env, count);
+	jtargets = (*env)->NewIntArray(env, count * 2);
+	juris = (*env)->NewObjectArray(env, count, string_class, NULL);
+	if(jboxes && jpages && jtargets && juris)
+	{
+		(*env)->SetIntArrayRegion(env, jboxes, 0, count * 4, boxes);
+		(*env)->SetIntArrayRegion(env, jpages, 0, count, pages);
+		(*env)->SetIntArrayRegion(env, jtargets, 0, count * 2, targets);
+		for(n = 0; n < count; n++)
+		{
+			if(uris[n] == NULL)
+				continue;
+			juri = (*env)->NewStringUTF(env, uris[n]);
+			(*env)->SetObjectArrayElement(env, juris, n, juri);
+			(*env)->DeleteLocalRef(env, juri);
+		}
+		result = (*env)->NewObject(env, links_class, links_init, jboxes, jpages, jtargets, juris);
+	}
+
+cleanup:
+	if(uris)
+	{
+		for(n = 0; n < annot_count; n++)
+			fz_free(uris[n]);
+	}
+	free(uris);
+	free(boxes);
+	free(pages);
+	free(targets);
+	return result;
+}
+
+//draws the page into the pixmap, whose rect is the patch of the pageW x pageH page
+static void draw_patch(pdf_document *doc, page_entry *entry, fz_pixmap *pix, int pageW, int pageH)
+{
+	fz_device *dev;
+	fz_bbox rect;
+
+	fz_clear_pixmap_with_color(pix, 0xff);
+
+	//only the commands touching the patch need to be drawn; glyphs that aren't in the
+	//	cache yet go through freetype's shared rasterizer
+	rect = fz_bound_pixmap(pix);
+	dev = fz_new_draw_device(doc->glyphcache, pix);
+	pthread_mutex_lock(&load_lock);
+	fz_execute_display_list(entry->list, dev,
+		page_ctm(entry->mediabox, entry->rotate, pageW, pageH), rect);
+	pthread_mutex_unlock(&load_lock);
 	fz_free_device(dev);
-	fz_drop_pixmap(pix);
+}
 
-	//compute the text spans for the page
-	LOGE("Compute text span");
+JNIEXPORT jobject JNICALL Java_cam_pdftab_PdfCore_extractText(JNIEnv *env, jclass cls,
+	jlong handle, int page, int pageW, int pageH)
+{
+	pdf_document *doc = document_from_handle(handle);
+	page_entry *entry;
+	fz_device *dev;
+	fz_matrix ctm;
+	fz_bbox bbox;
+	fz_text_span *text_span, *span;
+	jclass text_class;
+	jmethodID text_init;
+	jcharArray jtext;
+	jintArray jboxes, jlines;
+	jchar *text;
+	jint *boxes, *lines;
+	jobject result = NULL;
+	int glyphs, line_count, g, l, i;
+
+	clock_t end, start = clock();
+
+	text_class = (*env)->FindClass(env, "cam/pdftab/TextSpanData");
+	if(text_class == NULL)
+		return NULL;
+	text_init = (*env)->GetMethodID(env, text_class, "<init>", "([C[I[I)V");
+	if(text_init == NULL)
+		return NULL;
+
+	pthread_mutex_lock(&doc->lock);
+	entry = load_page_entry(doc, page);
+	if(entry == NULL)
+	{
+		pthread_mutex_unlock(&doc->lock);
+		return NULL;
+	}
+
+	ctm = page_ctm(entry->mediabox, entry->rotate, pageW, pageH);
+	bbox = fz_round_rect(fz_transform_rect(ctm, entry->mediabox));
+
+	//compute the text spans for the page, the glyph metrics come from freetype
 	text_span = fz_new_text_span();
 	dev = fz_new_text_device(text_span);
-	fz_execute_display_list(currentPageList, dev, ctm, bbox);
+	pthread_mutex_lock(&load_lock);
+	fz_execute_display_list(entry->list, dev, ctm, bbox);
+	pthread_mutex_unlock(&load_lock);
 	fz_free_device(dev);
 
-	//how much text
-    text_len = 0;
-    for(span = text_span; span; span = span->next)
-        text_len += span->len + 1; //1 for line separators
+	pthread_mutex_unlock(&doc->lock);
+
+	//how much text, a line runs until a span marked with eol (or the last one)
+	glyphs = 0;
+	line_count = 0;
+	for(span = text_span; span; span = span->next)
+	{
+		glyphs += span->len;
+		if(span->eol || !span->next)
+			line_count++;
+	}
 
-	//allocate text
-	text_content = malloc(text_len + 1);
-    if(!text_content) return 0;
+	//pack everything into three arrays so java gets it in one go
+	text = malloc(sizeof(jchar) * (glyphs + 1));
+	boxes = malloc(sizeof(jint) * (glyphs * 4 + 1));
+	lines = malloc(sizeof(jint) * (line_count + 1));
+	if(!text || !boxes || !lines)
+		goto cleanup;
 
-	ptr = text_content;
+	g = 0;
+	l = 0;
+	lines[0] = 0;
 	for(span = text_span; span; span = span->next)
 	{
-		for(i = 0; i < span->len; i++)
+		for(i = 0; i < span->len; i++, g++)
 		{
-			*ptr = span->text[i].c;
-			if(*ptr < 32)
-				*ptr = '?';
-			ptr++;
-
-			(*env)->CallVoidMethod(env, text_data, text_add_rect,
-				span->text[i].bbox.x0 - patchX, span->text[i].bbox.y0 - patchY,
-				span->text[i].bbox.x1 - patchX, span->text[i].bbox.y1 - patchY);
-		}
+			text[g] = span->text[i].c;
+			if(span->text[i].c < 32 || span->text[i].c > 0xffff)
+				text[g] = '?';
 
-		if(!span->eol && span->next)
-			continue;
+			boxes[g * 4] = span->text[i].bbox.x0;
+			boxes[g * 4 + 1] = span->text[i].bbox.y0;
+			boxes[g * 4 + 2] = span->text[i].bbox.x1;
+			boxes[g * 4 + 3] = span->text[i].bbox.y1;
+		}
 
-		*ptr = '\n';
-		ptr++;
+		if(span->eol || !span->next)
+			lines[++l] = g;
+	}
 
-		(*env)->CallVoidMethod(env, text_data, text_add_rect, -1, -1, -1, -1);
+	jtext = (*env)->NewCharArray(env, glyphs);
+	jboxes = (*env)->NewIntArray(env, glyphs * 4);
+	jlines = (*env)->NewIntArray(env, line_count + 1);
+	if(jtext && jboxes && jlines)
+	{
+		(*env)->SetCharArrayRegion(env, jtext, 0, glyphs, text);
+		(*env)->SetIntArrayRegion(env, jboxes, 0, glyphs * 4, boxes);
+		(*env)->SetIntArrayRegion(env, jlines, 0, line_count + 1, lines);
+		result = (*env)->NewObject(env, text_class, text_init, jtext, jboxes, jlines);
 	}
-	*ptr = 0x00;
 
-	//make the java string
-	(*env)->CallVoidMethod(env, text_data, text_set_string, (*env)->NewStringUTF(env, text_content));
+cleanup:
+	free(text);
+	free(boxes);
+	free(lines);
 
-	free(text_content);
+	//the spans hold on to their fonts, which may be the last references by now
+	pthread_mutex_lock(&load_lock);
 	fz_free_text_span(text_span);
+	pthread_mutex_unlock(&load_lock);
+
+	end = clock();
+	LOGE("Text = %d glyphs, %10.7fms", glyphs, (1000.0 * ((double)(end - start))) / CLOCKS_PER_SEC);
+	return result;
+}
+
+//packs rgba pixels down into a 565 bitmap row
+static void rgba_to_565(unsigned char *src, uint16_t *dst, int w)
+{
+	int i;
+
+	for(i = 0; i < w; i++, src += 4)
+		dst[i] = ((src[0] & 0xf8) << 8) | ((src[1] & 0xfc) << 3) | (src[2] >> 3);
+}
+
+JNIEXPORT jboolean JNICALL Java_cam_pdftab_PdfCore_drawPageBitmap(JNIEnv *env, jclass cls,
+	jlong handle, int page, jobject bitmap, int pageW, int pageH, int patchX, int patchY)
+{
+	pdf_document *doc = document_from_handle(handle);
+	AndroidBitmapInfo info;
+	page_entry *entry;
+	fz_pixmap *pix;
+	fz_bbox rect;
+	unsigned char *pixels;
+	int y, direct;
+
+	clock_t end, start = clock();
+
+	if(AndroidBitmap_getInfo(env, bitmap, &info) < 0)
+	{
+		LOGE("AndroidBitmap_getInfo failed");
+		return 0;
+	}
+
+	if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 && info.format != ANDROID_BITMAP_FORMAT_RGB_565)
+	{
+		LOGE("Unsupported bitmap format %d", info.format);
+		return 0;
+	}
+
+	if(AndroidBitmap_lockPixels(env, bitmap, (void **)&pixels) < 0)
+	{
+		LOGE("AndroidBitmap_lockPixels failed");
+		return 0;
+	}
+
+	LOGE("Rendering page=%dx%d patch=[%d,%d,%d,%d]", pageW, pageH, patchX, patchY, info.width, info.height);
+
+	rect.x0 = patchX;
+	rect.y0 = patchY;
+	rect.x1 = patchX + info.width;
+	rect.y1 = patchY + info.height;
+
+	//android stores ARGB_8888 as r,g,b,a bytes, so mupdf can draw straight into it
+	//	as long as the rows are packed, everything else goes through a scratch pixmap
+	direct = info.format == ANDROID_BITMAP_FORMAT_RGBA_8888 && info.stride == info.width * 4;
+	if(direct)
+		pix = fz_new_pixmap_with_rect_and_data(fz_device_rgb, rect, pixels);
+	else
+		pix = fz_new_pixmap_with_rect(fz_device_rgb, rect);
+
+	pthread_mutex_lock(&doc->lock);
+	entry = load_page_entry(doc, page);
+	if(entry)
+		draw_patch(doc, entry, pix, pageW, pageH);
+	else
+		fz_clear_pixmap_with_color(pix, 0xd0);
+	pthread_mutex_unlock(&doc->lock);
+
+	if(!direct)
+	{
+		for(y = 0; y < info.height; y++)
+		{
+			if(info.format == ANDROID_BITMAP_FORMAT_RGB_565)
+				rgba_to_565(pix->samples + y * info.width * 4,
+					(uint16_t *)(pixels + y * info.stride), info.width);
+			else
+				memcpy(pixels + y * info.stride, pix->samples + y * info.width * 4, info.width * 4);
+		}
+	}
+
+	fz_drop_pixmap(pix);
+	AndroidBitmap_unlockPixels(env, bitmap);
 
-	(*env)->ReleasePrimitiveArrayCritical(env, buf, pixels, 0);
 	end = clock();
 	LOGE("Rendered = %10.7fms", (1000.0 * ((double)(end - start))) / CLOCKS_PER_SEC);
-	return 1;
+	return entry != NULL;
 }
 
-JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_destroying(JNIEnv *env, jobject thiz)
+JNIEXPORT void JNICALL Java_cam_pdftab_PdfCore_closeFile(JNIEnv *env, jclass cls, jlong handle)
 {
+	pdf_document *doc = document_from_handle(handle);
+	page_entry *entry, *next;
+
 	LOGE("PdfCore.destroy");
-	fz_free_display_list(currentPageList);
-	currentPageList = NULL;
-	pdf_free_xref(xref);
-	xref = NULL;
-	fz_free_glyph_cache(glyphcache);
-	glyphcache = NULL;
+
+	//wait for anybody still using the document
+	pthread_mutex_lock(&doc->lock);
+	pthread_mutex_lock(&load_lock);
+	for(entry = doc->mru; entry; entry = next)
+	{
+		next = entry->next;
+		free_page_entry(entry);
+	}
+	fz_free(doc->pages);
+	if(doc->dests)
+		fz_drop_obj(doc->dests);
+	free(doc->pageNums);
+	pdf_free_xref(doc->xref);
+	fz_free_glyph_cache(doc->glyphcache);
+	pthread_mutex_unlock(&load_lock);
+	pthread_mutex_unlock(&doc->lock);
+
+	pthread_mutex_destroy(&doc->lock);
+	fz_free(doc);
 	LOGE("PdfCore.destroyed");
 }
@@ -0,0 +1,221 @@
+package cam.pdftab;
+
+import android.graphics.*;
+import android.os.*;
+import android.util.*;
+
+/**
+ * Finds the margins of a document from small renders of a sample of its pages. Runs on
+ *	its own thread and document, and reports back on the thread that started it.
+ */
+public class AutoCrop extends Thread
+{
+	private static final int SAMPLE_PAGES = 10;
+	private static final int RENDER_WIDTH = 200;
+
+	//anything darker than this is content, and a row or column needs a few such pixels
+	//	so specks of scanner noise don't count
+	private static final int INK_THRESHOLD = 0xD0;
+	private static final int INK_PIXELS = 2;
+
+	//odd and even margins are kept apart only if they differ by more than this much of
+	//	the page width
+	private static final float MIRROR_TOLERANCE = 0.02f;
+
+	private final String TAG = "PdfTab";
+	private final Handler handler = new Handler();
+	private final String path;
+	private final Listener listener;
+	private volatile boolean cancelled = false;
+
+	public interface Listener
+	{
+		/**
+		 * The crop boxes as left, top, right, bottom in page units. even is null when the
+		 *	odd box suits every page, both are null if nothing could be found.
+		 */
+		public void onAutoCrop(int[] odd, int[] even);
+	}
+
+	public AutoCrop(String path, Listener listener)
+	{
+		super("AutoCrop");
+		this.path = path;
+		this.listener = listener;
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public void run()
+	{
+		int[] odd = null, even = null;
+		long begin = System.currentTimeMillis();
+
+		PdfCore core;
+		try { core = PdfCore.openSeparate(path); }
+		catch(Exception e)
+		{
+			Log.w(TAG, "auto crop: " + e);
+			report(null, null);
+			return;
+		}
+
+		try
+		{
+			int samples = Math.min(SAMPLE_PAGES, core.numPages);
+			Bitmap bitmap = null;
+			int[] pixels = null;
+
+			for(int i = 0; i < samples && !cancelled; i++)
+			{
+				//spread over the whole document
+				int page = (int)((long)i * core.numPages / samples);
+
+				float pageWidth = core.getPageWidth(page);
+				float pageHeight = core.getPageHeight(page);
+				int w = RENDER_WIDTH;
+				int h = (int)(pageHeight * w / pageWidth);
+				if(h <= 0)
+					continue;
+
+				if(bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h)
+				{
+					if(bitmap != null)
+						bitmap.recycle();
+					bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+					pixels = new int[w * h];
+				}
+
+				bitmap.eraseColor(0xFFFFFFFF);
+				core.drawPage(page, bitmap, w, h, 0, 0);
+				bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+
+				int[] box = findContent(pixels, w, h);
+				if(box == null)
+					continue;
+
+				//back to page units
+				float scale = pageWidth / w;
+				for(int j = 0; j < 4; j++)
+					box[j] = (int)(box[j] * scale);
+
+				//page index 0 is page 1, an odd page
+				if(page % 2 == 0)
+					odd = union(odd, box);
+				else
+					even = union(even, box);
+			}
+
+			if(bitmap != null)
+				bitmap.recycle();
+
+			if(odd == null)
+			{
+				odd = even;
+				even = null;
+			}
+			else if(even != null && !isMirrored(odd, even, core.getPageWidth(0)))
+			{
+				odd = union(odd, even);
+				even = null;
+			}
+
+			if(odd != null)
+				pad(odd, core.getPageWidth(0), core.getPageHeight(0));
+			if(even != null)
+				pad(even, core.getPageWidth(1), core.getPageHeight(1));
+		}
+		finally
+		{
+			core.onDestroy();
+		}
+
+		Log.v(TAG, String.format("auto crop: %d ms", System.currentTimeMillis() - begin));
+
+		if(!cancelled)
+			report(odd, even);
+	}
+
+	private void report(final int[] odd, final int[] even)
+	{
+		handler.post(new Runnable() {
+			public void run() {
+				if(!cancelled)
+					listener.onAutoCrop(odd, even);
+			}
+		});
+	}
+
+	/**
+	 * The bounding box of the ink on the page, null for a blank page.
+	 */
+	private static int[] findContent(int[] pixels, int w, int h)
+	{
+		int left = w, top = h, right = -1, bottom = -1;
+
+		for(int y = 0; y < h; y++)
+		{
+			int ink = 0;
+			int rowLeft = w, rowRight = -1;
+
+			for(int x = 0; x < w; x++)
+			{
+				int p = pixels[y * w + x];
+				int lum = (((p >> 16) & 0xFF) * 3 + ((p >> 8) & 0xFF) * 6 + (p & 0xFF)) / 10;
+				if(lum < INK_THRESHOLD)
+				{
+					ink++;
+					if(x < rowLeft) rowLeft = x;
+					rowRight = x;
+				}
+			}
+
+			if(ink >= INK_PIXELS)
+			{
+				if(y < top) top = y;
+				bottom = y;
+				if(rowLeft < left) left = rowLeft;
+				if(rowRight > right) right = rowRight;
+			}
+		}
+
+		if(right < 0)
+			return null;
+		return new int[] { left, top, right + 1, bottom + 1 };
+	}
+
+	private static int[] union(int[] a, int[] b)
+	{
+		if(a == null)
+			return b;
+
+		a[0] = Math.min(a[0], b[0]);
+		a[1] = Math.min(a[1], b[1]);
+		a[2] = Math.max(a[2], b[2]);
+		a[3] = Math.max(a[3], b[3]);
+		return a;
+	}
+
+	private static boolean isMirrored(int[] odd, int[] even, float pageWidth)
+	{
+		float tolerance = pageWidth * MIRROR_TOLERANCE;
+		return Math.abs(odd[0] - even[0]) > tolerance || Math.abs(odd[2] - even[2]) > tolerance;
+	}
+
+	/**
+	 * A little breathing room around the content, the renders are only approximate.
+	 */
+	private static void pad(int[] box, float pageWidth, float pageHeight)
+	{
+		int padding = (int)(pageWidth / RENDER_WIDTH * 2);
+
+		box[0] = Math.max(0, box[0] - padding);
+		box[1] = Math.max(0, box[1] - padding);
+		box[2] = Math.min((int)pageWidth, box[2] + padding);
+		box[3] = Math.min((int)pageHeight, box[3] + padding);
+	}
+}
@@ -0,0 +1,131 @@
+package cam.pdftab;
+
+import android.graphics.*;
+import java.util.*;
+
+/**
+ * Keeps bitmaps that are no longer needed so the next render of the same size can reuse
+ *	them instead of allocating (and later collecting) a new one.
+ */
+public class BitmapPool
+{
+	private final HashMap<PoolKey, ArrayList<Bitmap>> free = new HashMap<PoolKey, ArrayList<Bitmap>>();
+	private final LinkedList<Bitmap> returnOrder = new LinkedList<Bitmap>();
+	private int maxBytes;
+	private int retainedBytes = 0;
+	private int hits = 0;
+	private int misses = 0;
+
+	public BitmapPool(int maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		ArrayList<Bitmap> list = free.get(new PoolKey(width, height, config));
+
+		if(list != null && list.size() > 0)
+		{
+			Bitmap b = list.remove(list.size() - 1);
+			returnOrder.remove(b);
+			retainedBytes -= sizeOf(b);
+			hits++;
+			return b;
+		}
+
+		misses++;
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Gives the bitmap back to the pool, the caller must not draw it anymore.
+	 */
+	public synchronized void put(Bitmap b)
+	{
+		if(b == null || b.isRecycled() || !b.isMutable())
+			return;
+
+		int size = sizeOf(b);
+		if(size > maxBytes)
+		{
+			b.recycle();
+			return;
+		}
+
+		PoolKey key = new PoolKey(b.getWidth(), b.getHeight(), b.getConfig());
+		ArrayList<Bitmap> list = free.get(key);
+		if(list == null)
+		{
+			list = new ArrayList<Bitmap>();
+			free.put(key, list);
+		}
+
+		list.add(b);
+		returnOrder.add(b);
+		retainedBytes += size;
+		trim();
+	}
+
+	public synchronized void setMaxBytes(int bytes)
+	{
+		maxBytes = bytes;
+		trim();
+	}
+
+	public synchronized void clear()
+	{
+		int max = maxBytes;
+		maxBytes = 0;
+		trim();
+		maxBytes = max;
+	}
+
+	public synchronized int getHits() { return hits; }
+	public synchronized int getMisses() { return misses; }
+	public synchronized int getRetainedBytes() { return retainedBytes; }
+
+	private void trim()
+	{
+		//oldest returned go first
+		while(retainedBytes > maxBytes && returnOrder.size() > 0)
+		{
+			Bitmap b = returnOrder.removeFirst();
+			free.get(new PoolKey(b.getWidth(), b.getHeight(), b.getConfig())).remove(b);
+			retainedBytes -= sizeOf(b);
+			b.recycle();
+		}
+	}
+
+	private static int sizeOf(Bitmap b)
+	{
+		return b.getRowBytes() * b.getHeight();
+	}
+
+	private static class PoolKey
+	{
+		public final int width, height;
+		public final Bitmap.Config config;
+
+		public PoolKey(int width, int height, Bitmap.Config config)
+		{
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if(!(o instanceof PoolKey))
+				return false;
+
+			PoolKey k = (PoolKey)o;
+			return k.width == width && k.height == height && k.config == config;
+		}
+
+		@Override public int hashCode()
+		{
+			return (width * 31 + height) * 31 + config.hashCode();
+		}
+	}
+}
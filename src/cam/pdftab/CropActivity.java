@@ -17,6 +17,13 @@ public class CropActivity extends Activity
 	private final String TAG = "PdfTab";
 	private final int edgeOffset = 100;
 	private final int handleGrow = 30;
+
+	//which pages Save applies the box to
+	private static final int SCOPE_ALL = 0;
+	private static final int SCOPE_PARITY = 1;
+	private static final int SCOPE_PAGE = 2;
+	private static final String[] scopeLabels = { "All pages", "Odd/even pages", "This page" };
+
 	private int movingCropLine = -1;
 	private int pageX, pageY, pageW, pageH;
 	private int cropLineTop, cropLineLeft, cropLineRight, cropLineBottom;
@@ -24,8 +31,14 @@ public class CropActivity extends Activity
 	private Rect cropTopRect, cropLeftRect, cropRightRect, cropBottomRect;
 	private CropView view;
 	private PdfCore core;
-	private int[] pagePixels;
+	private Bitmap pageBitmap;
 	private float pageScale;
+	private AutoCrop autoCrop = null;
+	private int scope;
+	private Button scopeButton;
+
+	//the box of the pages of the other parity, when odd and even pages are cropped apart
+	private int[] otherCrop = null;
 
 	@Override public void onCreate(Bundle savedInstanceState)
 	{
@@ -48,11 +61,26 @@ public class CropActivity extends Activity
 		cropRight = getResources().getDrawable(R.drawable.crop_right);
 		cropBottom = getResources().getDrawable(R.drawable.crop_bottom);
 
-		SharedPreferences settings = getSharedPreferences("pdf_files", Activity.MODE_PRIVATE);
-		cropLineLeft = settings.getInt("crop:" + core.path + ":left", 0);
-		cropLineTop = settings.getInt("crop:" + core.path + ":top", 0);
-		cropLineRight = settings.getInt("crop:" + core.path + ":right", (int)core.pageWidth);
-		cropLineBottom = settings.getInt("crop:" + core.path + ":bottom", (int)core.pageHeight);
+		DocumentState state = DocumentState.get(this, core.path);
+		int[] crop = new int[4];
+		state.getCrop(core.pageNum, crop, (int)core.pageWidth, (int)core.pageHeight);
+		cropLineLeft = crop[0];
+		cropLineTop = crop[1];
+		cropLineRight = crop[2];
+		cropLineBottom = crop[3];
+
+		if(state.hasEvenCrop())
+			otherCrop = loadOtherCrop(state);
+
+		if(state.hasPageCrop(core.pageNum))
+			scope = SCOPE_PAGE;
+		else if(state.hasEvenCrop())
+			scope = SCOPE_PARITY;
+		else
+			scope = SCOPE_ALL;
+
+		scopeButton = (Button)findViewById(R.id.cropscope);
+		scopeButton.setText(scopeLabels[scope]);
 	}
 
 	protected void computePageOffsets()
@@ -76,22 +104,105 @@ public class CropActivity extends Activity
 
 	private void renderPage()
 	{
-		TextSpanData spanData = new TextSpanData();
-		pagePixels = core.renderPage(pageW, pageH, 0, 0, pageW, pageH, spanData);
+		pageBitmap = Bitmap.createBitmap(pageW, pageH, Bitmap.Config.ARGB_8888);
+		core.drawPage(core.pageNum, pageBitmap, pageW, pageH, 0, 0);
 	}
 
 	public void onSave(View view)
 	{
-		SharedPreferences settings = getSharedPreferences("pdf_files", Activity.MODE_PRIVATE);
-		SharedPreferences.Editor edit = settings.edit();
-		edit.putInt("crop:" + core.path + ":left", cropLineLeft);
-		edit.putInt("crop:" + core.path + ":top", cropLineTop);
-		edit.putInt("crop:" + core.path + ":right", cropLineRight);
-		edit.putInt("crop:" + core.path + ":bottom", cropLineBottom);
-		edit.commit();
+		int[] crop = { cropLineLeft, cropLineTop, cropLineRight, cropLineBottom };
+		DocumentState state = DocumentState.get(this, core.path);
+
+		//the handles edit the box of the page being shown
+		if(scope == SCOPE_PAGE)
+			state.setPageCrop(core.pageNum, crop);
+		else
+		{
+			state.setPageCrop(core.pageNum, null);
+
+			if(scope == SCOPE_ALL)
+				state.setCrops(crop, null);
+			else if(core.pageNum % 2 == 0)
+				state.setCrops(crop, otherCrop);
+			else
+				state.setCrops(otherCrop, crop);
+		}
 		finish();
 	}
 
+	/**
+	 * Steps through all pages, odd/even pages and this page only.
+	 */
+	public void onCropScope(View button)
+	{
+		scope = (scope + 1) % scopeLabels.length;
+		scopeButton.setText(scopeLabels[scope]);
+
+		//both parities are saved, the other one keeps the box it has now
+		if(scope == SCOPE_PARITY && otherCrop == null)
+			otherCrop = loadOtherCrop(DocumentState.get(this, core.path));
+	}
+
+	/**
+	 * The shared box of the pages of the other parity, the whole page if there is none.
+	 */
+	private int[] loadOtherCrop(DocumentState state)
+	{
+		//the neighbour may have a box of its own, only its size is used
+		int other = core.pageNum + 1;
+		int sized = (other < core.numPages) ? other : Math.max(0, core.pageNum - 1);
+
+		int[] box = new int[4];
+		state.getSharedCrop(other, box, (int)core.getPageWidth(sized), (int)core.getPageHeight(sized));
+		return box;
+	}
+
+	/**
+	 * Measures the margins in the background and moves the handles there, nothing is
+	 *	kept until Save.
+	 */
+	public void onAutoCrop(View button)
+	{
+		if(autoCrop != null)
+			return;
+
+		autoCrop = new AutoCrop(core.path, new AutoCrop.Listener() {
+			public void onAutoCrop(int[] odd, int[] even) {
+				autoCrop = null;
+				if(odd == null)
+					return;
+
+				int[] crop = (even != null && core.pageNum % 2 == 1) ? even : odd;
+				cropLineLeft = crop[0];
+				cropLineTop = crop[1];
+				cropLineRight = crop[2];
+				cropLineBottom = crop[3];
+
+				if(even == null)
+				{
+					otherCrop = null;
+					scope = SCOPE_ALL;
+				}
+				else
+				{
+					otherCrop = (core.pageNum % 2 == 1) ? odd : even;
+					scope = SCOPE_PARITY;
+				}
+				scopeButton.setText(scopeLabels[scope]);
+
+				view.invalidate();
+			}
+		});
+		autoCrop.start();
+	}
+
+	@Override public void onDestroy()
+	{
+		if(autoCrop != null)
+			autoCrop.cancel();
+		super.onDestroy();
+	}
+
 	private int clickOffset = 0;
 	private boolean processCrop(MotionEvent event)
 	{
@@ -207,7 +318,7 @@ public class CropActivity extends Activity
 			paintDim.setColor(0x80000000);
 
 			canvas.drawRGB(0, 0, 0);
-			canvas.drawBitmap(pagePixels, 0, pageW, pageX, pageY, pageW, pageH, false, (Paint)null);
+			canvas.drawBitmap(pageBitmap, pageX, pageY, (Paint)null);
 
 			canvas.drawRect(0, 0, screenLeft + pageX, getHeight(), paintDim);
 			canvas.drawRect(screenRight + pageX, 0, getWidth(), getHeight(), paintDim);
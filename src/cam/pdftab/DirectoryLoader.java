@@ -0,0 +1,185 @@
+package cam.pdftab;
+
+import android.os.*;
+import android.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lists the folders and PDFs of a directory off the UI thread, handing them over in
+ *	batches as they are found. The last listing of every directory is kept and reused as
+ *	long as the directory's mtime hasn't changed.
+ */
+public class DirectoryLoader
+{
+	private static final int BATCH_SIZE = 32;
+
+	//shared by every FilesActivity, so going back up the tree or coming back to the
+	//	app doesn't rescan
+	private static final HashMap<String, Listing> listings = new HashMap<String, Listing>();
+
+	private final String TAG = "PdfTab";
+	private final Handler handler = new Handler();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private volatile int generation = 0;
+
+	/**
+	 * One directory entry, stat-ed once when it was listed.
+	 */
+	public static class Entry
+	{
+		public final File file;
+		public final boolean isDirectory;
+		public final long lastModified;
+
+		public Entry(File file, boolean isDirectory, long lastModified)
+		{
+			this.file = file;
+			this.isDirectory = isDirectory;
+			this.lastModified = lastModified;
+		}
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Some more entries, unsorted, while the directory is still being read.
+		 */
+		public void onEntries(File dir, List<Entry> batch);
+
+		/**
+		 * Every entry of the directory, sorted, folders first.
+		 */
+		public void onFinished(File dir, List<Entry> all);
+	}
+
+	private static class Listing
+	{
+		public final long modified;
+		public final List<Entry> entries;
+
+		public Listing(long modified, List<Entry> entries)
+		{
+			this.modified = modified;
+			this.entries = entries;
+		}
+	}
+
+	public static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if(a.isDirectory != b.isDirectory)
+				return a.isDirectory ? -1 : 1;
+			return a.file.compareTo(b.file);
+		}
+	};
+
+	/**
+	 * Starts reading the directory, whatever was being read before is abandoned. The
+	 *	listener is called on the thread that created the loader.
+	 */
+	public void load(final File dir, final Listener listener)
+	{
+		final int loadGeneration = ++generation;
+
+		executor.submit(new Runnable() {
+			public void run() {
+				scan(dir, listener, loadGeneration);
+			}
+		});
+	}
+
+	public void cancel()
+	{
+		generation++;
+	}
+
+	public void shutdown()
+	{
+		cancel();
+		executor.shutdown();
+	}
+
+	private void scan(final File dir, final Listener listener, final int loadGeneration)
+	{
+		long modified = dir.lastModified();
+
+		Listing cached;
+		synchronized(listings) { cached = listings.get(dir.getPath()); }
+		if(cached != null && cached.modified == modified)
+		{
+			deliver(dir, listener, loadGeneration, null, cached.entries);
+			return;
+		}
+
+		//long begin = System.currentTimeMillis();
+
+		ArrayList<Entry> all = new ArrayList<Entry>();
+		ArrayList<Entry> batch = new ArrayList<Entry>();
+		File[] files = dir.listFiles();
+
+		if(files != null)
+		{
+			for(File f : files)
+			{
+				if(loadGeneration != generation)
+					return;
+
+				//the name check is free, so anything else costs one stat to see if it is
+				//	a folder; a PDF also needs its mtime, and a check it isn't a folder
+				//	named like one
+				Entry e;
+				if(f.getName().endsWith(".pdf"))
+				{
+					long fileModified = f.lastModified();
+					//deleted since the listing
+					if(fileModified == 0)
+						continue;
+					if(f.isFile())
+						e = new Entry(f, false, fileModified);
+					else
+						e = new Entry(f, true, 0);
+				}
+				else if(f.isDirectory())
+					e = new Entry(f, true, 0);
+				else
+					continue;
+
+				all.add(e);
+				batch.add(e);
+
+				if(batch.size() >= BATCH_SIZE)
+				{
+					deliver(dir, listener, loadGeneration, batch, null);
+					batch = new ArrayList<Entry>();
+				}
+			}
+		}
+
+		Collections.sort(all, ORDER);
+		List<Entry> entries = Collections.unmodifiableList(all);
+
+		synchronized(listings) { listings.put(dir.getPath(), new Listing(modified, entries)); }
+		deliver(dir, listener, loadGeneration, null, entries);
+
+		//long duration = System.currentTimeMillis() - begin;
+		//Log.v(TAG, String.format("scanned %s: %d entries in %d ms", dir, all.size(), duration));
+	}
+
+	private void deliver(final File dir, final Listener listener, final int loadGeneration,
+		final List<Entry> batch, final List<Entry> all)
+	{
+		handler.post(new Runnable() {
+			public void run() {
+				//the user may have moved on to another directory already
+				if(loadGeneration != generation)
+					return;
+
+				if(batch != null)
+					listener.onEntries(dir, batch);
+				else
+					listener.onFinished(dir, all);
+			}
+		});
+	}
+}
@@ -0,0 +1,221 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.graphics.*;
+import android.util.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Rendered tiles saved as PNGs under the cache dir, so reopening a document shows the
+ *	pages without waiting for mupdf. Least recently used files go once over the size cap.
+ */
+public class DiskTileCache
+{
+	private static DiskTileCache instance = null;
+
+	private final String TAG = "PdfTab";
+	private final File dir;
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(64, 0.75f, true);
+	private long maxBytes;
+	private long totalBytes = 0;
+	private boolean loaded = false;
+
+	public static synchronized DiskTileCache getInstance(Context context)
+	{
+		if(instance == null)
+			instance = new DiskTileCache(new File(context.getCacheDir(), "tiles"), 32 << 20);
+		return instance;
+	}
+
+	public DiskTileCache(File dir, long maxBytes)
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long bytes)
+	{
+		maxBytes = bytes;
+		trim();
+	}
+
+	/**
+	 * Decodes the tile straight into the given bitmap, which must be the size of the tile.
+	 *	Returns false if the tile isn't cached or can't be read.
+	 */
+	public boolean read(String key, Bitmap into)
+	{
+		String name = fileName(key);
+
+		synchronized(this)
+		{
+			load();
+			if(files.get(name) == null)
+				return false;
+		}
+
+		File f = new File(dir, name);
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inBitmap = into;
+		opts.inMutable = true;
+		opts.inPreferredConfig = into.getConfig();
+		opts.inSampleSize = 1;
+
+		Bitmap b;
+		try { b = BitmapFactory.decodeFile(f.getPath(), opts); }
+		catch(IllegalArgumentException e) { b = null; }
+
+		if(b != into)
+		{
+			//unreadable or not the size we expected, don't try it again
+			if(b != null)
+				b.recycle();
+			remove(name);
+			return false;
+		}
+
+		f.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Decodes into a new bitmap, for entries whose size isn't known up front.
+	 *	Returns null if it isn't cached or can't be read.
+	 */
+	public Bitmap read(String key, Bitmap.Config config)
+	{
+		String name = fileName(key);
+
+		synchronized(this)
+		{
+			load();
+			if(files.get(name) == null)
+				return null;
+		}
+
+		File f = new File(dir, name);
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inPreferredConfig = config;
+
+		Bitmap b = BitmapFactory.decodeFile(f.getPath(), opts);
+		if(b == null)
+			remove(name);
+		else
+			f.setLastModified(System.currentTimeMillis());
+		return b;
+	}
+
+	public void write(String key, Bitmap tile)
+	{
+		String name = fileName(key);
+		File tmp = new File(dir, name + ".tmp");
+		File f = new File(dir, name);
+
+		try
+		{
+			dir.mkdirs();
+
+			FileOutputStream out = new FileOutputStream(tmp);
+			try { tile.compress(Bitmap.CompressFormat.PNG, 100, out); }
+			finally { out.close(); }
+
+			//readers only ever see complete files
+			if(!tmp.renameTo(f))
+			{
+				tmp.delete();
+				return;
+			}
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "couldn't write tile " + name, e);
+			tmp.delete();
+			return;
+		}
+
+		synchronized(this)
+		{
+			load();
+
+			Long old = files.put(name, f.length());
+			totalBytes += f.length() - (old == null ? 0 : old);
+			trim();
+		}
+	}
+
+	private synchronized void remove(String name)
+	{
+		Long size = files.remove(name);
+		if(size != null)
+			totalBytes -= size;
+		new File(dir, name).delete();
+	}
+
+	/**
+	 * Reads what is on disk the first time the cache is used, oldest first.
+	 */
+	private void load()
+	{
+		if(loaded)
+			return;
+		loaded = true;
+
+		File[] list = dir.listFiles();
+		if(list == null)
+			return;
+
+		Arrays.sort(list, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for(File f : list)
+		{
+			//left over from a write that never finished
+			if(f.getName().endsWith(".tmp"))
+			{
+				f.delete();
+				continue;
+			}
+
+			files.put(f.getName(), f.length());
+			totalBytes += f.length();
+		}
+
+		trim();
+	}
+
+	private void trim()
+	{
+		Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+		while(totalBytes > maxBytes && it.hasNext())
+		{
+			Map.Entry<String, Long> e = it.next();
+			new File(dir, e.getKey()).delete();
+			totalBytes -= e.getValue();
+			it.remove();
+		}
+	}
+
+	private static String fileName(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 4);
+			for(byte b : digest)
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.append(".png").toString();
+		}
+		catch(Exception e)
+		{
+			//every VM has MD5 and UTF-8, but just in case
+			return Integer.toHexString(key.hashCode()) + ".png";
+		}
+	}
+}
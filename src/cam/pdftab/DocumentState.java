@@ -0,0 +1,247 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * What the reader remembers about one document (last page, crop box). Read from the
+ *	library index once per document, in the background as soon as it is first asked for,
+ *	after that it is all in memory; changes are written back in the background, several
+ *	changes close together in one write.
+ */
+public class DocumentState
+{
+	private static final long WRITE_DELAY_MS = 500;
+
+	private static final HashMap<String, DocumentState> states = new HashMap<String, DocumentState>();
+	private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DocumentState");
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+
+	private final String TAG = "PdfTab";
+	private final LibraryIndex index;
+	private final String path;
+	private int lastPage;
+	private int[] crop;
+	private int[] evenCrop;
+	private HashMap<Integer, int[]> pageCrops = new HashMap<Integer, int[]>();
+	private ScheduledFuture<?> pendingWrite = null;
+	private boolean loaded = false;
+
+	/**
+	 * Never touches the database, the first call for a document starts reading it in the
+	 *	background. Call it as the document is opened, by the time the reader asks for
+	 *	anything it is in memory; until then the other methods wait for it.
+	 */
+	public static DocumentState get(Context context, String path)
+	{
+		final DocumentState state;
+		synchronized(states)
+		{
+			DocumentState known = states.get(path);
+			if(known != null)
+				return known;
+
+			state = new DocumentState(LibraryIndex.getInstance(context), path);
+			states.put(path, state);
+		}
+
+		new Thread("DocumentState") {
+			public void run() {
+				state.load();
+			}
+		}.start();
+		return state;
+	}
+
+	private DocumentState(LibraryIndex index, String path)
+	{
+		this.index = index;
+		this.path = path;
+	}
+
+	private void load()
+	{
+		LibraryIndex.Book book = null;
+		HashMap<Integer, int[]> crops = null;
+		try
+		{
+			book = index.getBook(path);
+			crops = index.getPageCrops(path);
+		}
+		catch(RuntimeException e)
+		{
+			//forgets the document rather than leaving everybody waiting
+			Log.w(TAG, "can't read the state of " + path + ": " + e);
+		}
+
+		synchronized(this)
+		{
+			if(book != null)
+			{
+				lastPage = book.lastPage;
+				crop = book.crop;
+				evenCrop = book.evenCrop;
+			}
+			if(crops != null)
+				pageCrops = crops;
+
+			loaded = true;
+			notifyAll();
+		}
+	}
+
+	//must be called with the lock held
+	private void awaitLoad()
+	{
+		boolean interrupted = false;
+		while(!loaded)
+		{
+			try { wait(); }
+			catch(InterruptedException e) { interrupted = true; }
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public synchronized int getLastPage() { awaitLoad(); return lastPage; }
+	public synchronized boolean hasEvenCrop() { awaitLoad(); return evenCrop != null; }
+	public synchronized boolean hasPageCrop(int page) { awaitLoad(); return pageCrops.containsKey(page); }
+
+	/**
+	 * The crop box of the page (an index, so 0 is the odd page 1) as left, top, right,
+	 *	bottom, or the whole page if there is none. The page's own box wins over the
+	 *	odd/even one, which wins over the one for the whole document.
+	 */
+	public synchronized void getCrop(int page, int[] box, int defaultRight, int defaultBottom)
+	{
+		awaitLoad();
+
+		int[] c = pageCrops.get(page);
+		if(c != null)
+			System.arraycopy(c, 0, box, 0, 4);
+		else
+			getSharedCrop(page, box, defaultRight, defaultBottom);
+	}
+
+	/**
+	 * Like getCrop, but ignoring the box of the page itself.
+	 */
+	public synchronized void getSharedCrop(int page, int[] box, int defaultRight, int defaultBottom)
+	{
+		awaitLoad();
+
+		int[] c = (page % 2 == 1 && evenCrop != null) ? evenCrop : crop;
+
+		if(c != null)
+			System.arraycopy(c, 0, box, 0, 4);
+		else
+		{
+			box[0] = 0;
+			box[1] = 0;
+			box[2] = defaultRight;
+			box[3] = defaultBottom;
+		}
+	}
+
+	public synchronized void setLastPage(int page)
+	{
+		awaitLoad();
+
+		if(page == lastPage)
+			return;
+
+		lastPage = page;
+		scheduleWrite(WRITE_DELAY_MS);
+	}
+
+	/**
+	 * One crop box for every page.
+	 */
+	public synchronized void setCrop(int left, int top, int right, int bottom)
+	{
+		setCrops(new int[] { left, top, right, bottom }, null);
+	}
+
+	/**
+	 * Separate boxes for odd and even pages, for books with mirrored margins. A null even
+	 *	box means odd applies to every page.
+	 */
+	public synchronized void setCrops(int[] odd, int[] even)
+	{
+		awaitLoad();
+
+		crop = (odd != null) ? odd.clone() : null;
+		evenCrop = (even != null) ? even.clone() : null;
+		scheduleWrite(WRITE_DELAY_MS);
+	}
+
+	/**
+	 * A box for just this page, null goes back to the odd/even or document one.
+	 */
+	public synchronized void setPageCrop(int page, int[] box)
+	{
+		awaitLoad();
+
+		//copied, the writer may still be reading the old map
+		pageCrops = new HashMap<Integer, int[]>(pageCrops);
+		if(box != null)
+			pageCrops.put(page, box.clone());
+		else
+			pageCrops.remove(page);
+		scheduleWrite(WRITE_DELAY_MS);
+	}
+
+	/**
+	 * Writes any pending change now, still off the calling thread. For onPause, where
+	 *	we may not get another chance.
+	 */
+	public synchronized void flush()
+	{
+		if(pendingWrite != null)
+			scheduleWrite(0);
+	}
+
+	private void scheduleWrite(long delay)
+	{
+		if(pendingWrite != null)
+		{
+			//already waiting, the write will pick up this change too
+			if(delay > 0)
+				return;
+			pendingWrite.cancel(false);
+		}
+
+		pendingWrite = writer.schedule(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void write()
+	{
+		int page;
+		int[] odd, even;
+		Map<Integer, int[]> pages;
+
+		//the arrays and map are replaced, never changed, so they are safe to hand over
+		synchronized(this)
+		{
+			pendingWrite = null;
+			page = lastPage;
+			odd = crop;
+			even = evenCrop;
+			pages = pageCrops;
+		}
+
+		index.saveState(path, page, odd, even, pages);
+	}
+}
@@ -15,6 +15,12 @@ import android.util.*;
 public class FilesActivity extends ListActivity
 {
 	protected LayoutInflater inflater = null;
+	protected ThumbnailLoader thumbnails = null;
+	protected DirectoryLoader loader = null;
+	protected LibraryCrawler crawler = null;
+	protected LibraryIndex library = null;
+	private Handler handler = new Handler();
+	private FileAdapter adapter = null;
 	protected File root = new File("/mnt/sdcard/Books");
 	protected File currentRoot = new File("/mnt/sdcard/Books");
 
@@ -23,6 +29,19 @@ public class FilesActivity extends ListActivity
 		super.onCreate(bundle);
 		this.inflater = getLayoutInflater();
 
+		float density = getResources().getDisplayMetrics().density;
+		this.thumbnails = new ThumbnailLoader(this, (int)(48 * density));
+		this.loader = new DirectoryLoader();
+		this.library = LibraryIndex.getInstance(this);
+
+		//titles show up in the list as the crawler finds them
+		crawler = new LibraryCrawler(library, root, new Runnable() {
+			public void run() {
+				handler.post(refreshList);
+			}
+		});
+		crawler.start();
+
 		updateList();
 	}
 
@@ -32,6 +51,14 @@ public class FilesActivity extends ListActivity
 		updateList();
 	}
 
+	public void onDestroy()
+	{
+		crawler.stopRunning();
+		loader.shutdown();
+		thumbnails.shutdown();
+		super.onDestroy();
+	}
+
 	public void onBackPressed()
 	{
 		if(currentRoot.equals(root))
@@ -43,53 +70,87 @@ public class FilesActivity extends ListActivity
 
 	public void onListItemClick(ListView l, View v, int position, long id)
 	{
-		File file = (File)getListView().getItemAtPosition(position);
-		if(file.isDirectory())
+		DirectoryLoader.Entry entry = (DirectoryLoader.Entry)getListView().getItemAtPosition(position);
+		if(entry.isDirectory)
 		{
-			currentRoot = file;
+			currentRoot = entry.file;
 			updateList();
 		}
 		else
 		{
 			Intent intent = new Intent(this, PdfActivity.class);
 			intent.setAction(Intent.ACTION_VIEW);
-			intent.setData(Uri.fromFile(file));
+			intent.setData(Uri.fromFile(entry.file));
 			startActivity(intent);
 		}
 	}
 
+	private Runnable refreshList = new Runnable() {
+		public void run() {
+			handler.removeCallbacks(this);
+			if(adapter != null)
+				adapter.notifyDataSetChanged();
+		}
+	};
+
+	/**
+	 * Reads currentRoot in the background, the list fills in as entries are found.
+	 */
 	private void updateList()
 	{
-		ArrayList<File> arr = new ArrayList<File>();
-		File[] files = currentRoot.listFiles();
+		final File dir = currentRoot;
 
-		if(files != null)
+		//coming back to the directory that is shown, keep it until there is something new
+		final boolean keepShown = adapter != null && dir.equals(adapter.dir);
+		if(!keepShown)
 		{
-			for(File f : files)
+			adapter = new FileAdapter(this, dir);
+			setListAdapter(adapter);
+		}
+
+		loader.load(dir, new DirectoryLoader.Listener() {
+			private boolean cleared = !keepShown;
+
+			public void onEntries(File d, List<DirectoryLoader.Entry> batch)
 			{
-				if(f.isDirectory())
-					arr.add(f);
-				else if(f.isFile() && f.getName().endsWith(".pdf"))
-					arr.add(f);
+				adapter.setNotifyOnChange(false);
+				if(!cleared)
+				{
+					adapter.clear();
+					cleared = true;
+				}
+
+				for(DirectoryLoader.Entry e : batch)
+					adapter.add(e);
+				adapter.sort(DirectoryLoader.ORDER);
+				adapter.notifyDataSetChanged();
 			}
 
-			Collections.sort(arr, new FileComparable());
-		}
-
-		setListAdapter(new FileAdapter(this, arr));
+			public void onFinished(File d, List<DirectoryLoader.Entry> all)
+			{
+				adapter.setNotifyOnChange(false);
+				adapter.clear();
+				for(DirectoryLoader.Entry e : all)
+					adapter.add(e);
+				adapter.notifyDataSetChanged();
+			}
+		});
 	}
 
-	private class FileAdapter extends ArrayAdapter<File>
+	private class FileAdapter extends ArrayAdapter<DirectoryLoader.Entry>
 	{
-		public FileAdapter(Context context, List<File> items)
+		public final File dir;
+
+		public FileAdapter(Context context, File dir)
 		{
-			super(context, R.layout.list_item, items);
+			super(context, R.layout.list_item, new ArrayList<DirectoryLoader.Entry>());
+			this.dir = dir;
 		}
 
 		@Override public View getView(int position, View convertView, ViewGroup parent)
 		{
 			View row;
-			File item = getItem(position);
+			DirectoryLoader.Entry item = getItem(position);
 
 			if(null == convertView)
 				row = inflater.inflate(R.layout.list_item, null);
@@ -98,29 +159,22 @@ public class FilesActivity extends ListActivity
 
 			ImageView img = (ImageView)row.findViewById(R.id.image);
 
-			if(item.isDirectory())
+			if(item.isDirectory)
+			{
+				thumbnails.clear(img);
 				img.setImageResource(R.drawable.folder);
+			}
 			else
-				img.setImageResource(R.drawable.pdf);
+				thumbnails.load(item.file, item.lastModified, img, R.drawable.pdf);
 
 			TextView tv = (TextView)row.findViewById(R.id.text);
-			tv.setText(item.getName());
-			return row;
-		}
-	}
-
-	private class FileComparable implements Comparator<File>
-	{
-		public int compare(File a, File b)
-		{
-			if(a.isDirectory() && b.isDirectory())
-				return a.compareTo(b);
-			else if(a.isFile() && b.isFile())
-				return a.compareTo(b);
-			else if(a.isDirectory() && b.isFile())
-				return -1;
+			//the title from the index if the crawler has found one
+			LibraryIndex.Book book = item.isDirectory ? null : library.peekBook(item.file.getPath());
+			if(book != null && book.title != null && book.title.trim().length() > 0)
+				tv.setText(book.title);
 			else
-				return 1;
+				tv.setText(item.file.getName());
+			return row;
 		}
 	}
 }
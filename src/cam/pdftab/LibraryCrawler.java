@@ -0,0 +1,102 @@
+package cam.pdftab;
+
+import android.util.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Walks the books root in the background and (re)reads the metadata of every PDF that is
+ *	new or changed since it was last indexed.
+ */
+public class LibraryCrawler extends Thread
+{
+	private final String TAG = "PdfTab";
+	private final LibraryIndex index;
+	private final File root;
+	private final Runnable onChanged;
+	private volatile boolean running = true;
+
+	/**
+	 * onChanged is run on the crawler thread whenever a book was added or updated.
+	 */
+	public LibraryCrawler(LibraryIndex index, File root, Runnable onChanged)
+	{
+		super("LibraryCrawler");
+		this.index = index;
+		this.root = root;
+		this.onChanged = onChanged;
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	public void stopRunning()
+	{
+		running = false;
+		interrupt();
+	}
+
+	public void run()
+	{
+		long begin = System.currentTimeMillis();
+		int updated = 0;
+
+		index.loadAll();
+
+		LinkedList<File> dirs = new LinkedList<File>();
+		dirs.add(root);
+
+		while(running && dirs.size() > 0)
+		{
+			File[] files = dirs.removeFirst().listFiles();
+			if(files == null)
+				continue;
+
+			for(File f : files)
+			{
+				if(!running)
+					break;
+
+				if(f.isDirectory())
+					dirs.add(f);
+				else if(f.getName().endsWith(".pdf") && crawl(f))
+					updated++;
+			}
+		}
+
+		Log.v(TAG, String.format("library crawl: %d books updated in %d ms", updated,
+			System.currentTimeMillis() - begin));
+	}
+
+	private boolean crawl(File f)
+	{
+		long modified = f.lastModified();
+		long size = f.length();
+
+		LibraryIndex.Book book = index.getBook(f.getPath());
+		if(book != null && book.modified == modified && book.size == size)
+			return false;
+
+		PdfCore core;
+		try { core = PdfCore.openSeparate(f.getPath()); }
+		catch(Exception e)
+		{
+			Log.w(TAG, "can't index " + f + ": " + e);
+			return false;
+		}
+
+		try
+		{
+			//same key the thumbnail loader uses for its cache
+			index.saveMetadata(f.getPath(), modified, size, core.numPages,
+				core.getMetadata("Title"), core.getMetadata("Author"),
+				f.getPath() + "|" + modified);
+		}
+		finally
+		{
+			core.onDestroy();
+		}
+
+		if(onChanged != null)
+			onChanged.run();
+		return true;
+	}
+}
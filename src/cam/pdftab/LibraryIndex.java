@@ -0,0 +1,393 @@
+package cam.pdftab;
+
+import android.app.*;
+import android.content.*;
+import android.database.*;
+import android.database.sqlite.*;
+import android.util.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Everything we know about each PDF: what the crawler read from the file and what the
+ *	reader saved (last page, crop box). Rows are cached in memory once read, so lookups
+ *	after the first are just a hash lookup.
+ */
+public class LibraryIndex extends SQLiteOpenHelper
+{
+	private static final String DATABASE_NAME = "library.db";
+	private static final int DATABASE_VERSION = 3;
+	private static final String[] COLUMNS = {
+		"path", "modified", "size", "pages", "title", "author",
+		"last_page", "crop_left", "crop_top", "crop_right", "crop_bottom", "thumbnail",
+		"crop_even_left", "crop_even_top", "crop_even_right", "crop_even_bottom" };
+
+	private static LibraryIndex instance = null;
+
+	private final String TAG = "PdfTab";
+	private final Context context;
+
+	//its own lock, the database work holds this one and the UI thread mustn't wait on it
+	private final HashMap<String, Book> books = new HashMap<String, Book>();
+	private volatile boolean loadedAll = false;
+
+	public static class Book
+	{
+		public final String path;
+		public long modified;
+		public long size;
+		public int pages;
+		public String title;
+		public String author;
+		public int lastPage;
+		public String thumbnail;
+
+		//left, top, right, bottom, null when not set; the even one, if set, is for the
+		//	even numbered (printed) pages
+		public int[] crop;
+		public int[] evenCrop;
+
+		public Book(String path)
+		{
+			this.path = path;
+		}
+	}
+
+	public static synchronized LibraryIndex getInstance(Context context)
+	{
+		if(instance == null)
+			instance = new LibraryIndex(context.getApplicationContext());
+		return instance;
+	}
+
+	private LibraryIndex(Context context)
+	{
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		this.context = context;
+	}
+
+	@Override public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE TABLE books (" +
+			"path TEXT PRIMARY KEY, " +
+			"modified INTEGER NOT NULL DEFAULT 0, " +
+			"size INTEGER NOT NULL DEFAULT 0, " +
+			"pages INTEGER NOT NULL DEFAULT 0, " +
+			"title TEXT, " +
+			"author TEXT, " +
+			"last_page INTEGER NOT NULL DEFAULT 0, " +
+			"crop_left INTEGER, " +
+			"crop_top INTEGER, " +
+			"crop_right INTEGER, " +
+			"crop_bottom INTEGER, " +
+			"thumbnail TEXT, " +
+			"crop_even_left INTEGER, " +
+			"crop_even_top INTEGER, " +
+			"crop_even_right INTEGER, " +
+			"crop_even_bottom INTEGER)");
+
+		createPageCrops(db);
+		importPreferences(db);
+	}
+
+	private static void createPageCrops(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE TABLE page_crops (" +
+			"path TEXT NOT NULL, " +
+			"page INTEGER NOT NULL, " +
+			"crop_left INTEGER NOT NULL, " +
+			"crop_top INTEGER NOT NULL, " +
+			"crop_right INTEGER NOT NULL, " +
+			"crop_bottom INTEGER NOT NULL, " +
+			"PRIMARY KEY (path, page))");
+	}
+
+	@Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		if(oldVersion < 2)
+		{
+			db.execSQL("ALTER TABLE books ADD COLUMN crop_even_left INTEGER");
+			db.execSQL("ALTER TABLE books ADD COLUMN crop_even_top INTEGER");
+			db.execSQL("ALTER TABLE books ADD COLUMN crop_even_right INTEGER");
+			db.execSQL("ALTER TABLE books ADD COLUMN crop_even_bottom INTEGER");
+		}
+
+		if(oldVersion < 3)
+			createPageCrops(db);
+	}
+
+	/**
+	 * The book if it is in the index, null otherwise.
+	 */
+	public synchronized Book getBook(String path)
+	{
+		Book book = peekBook(path);
+		if(book != null || loadedAll)
+			return book;
+
+		Cursor c = getReadableDatabase().query("books", COLUMNS, "path = ?",
+			new String[] { path }, null, null, null);
+		try
+		{
+			if(c.moveToFirst())
+			{
+				book = readBook(c);
+				synchronized(books) { books.put(path, book); }
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		return book;
+	}
+
+	/**
+	 * Only what is already in memory, never touches the database or waits for it, for
+	 *	the UI thread.
+	 */
+	public Book peekBook(String path)
+	{
+		synchronized(books) { return books.get(path); }
+	}
+
+	/**
+	 * Reads the whole index into memory, after this getBook never queries.
+	 */
+	public synchronized void loadAll()
+	{
+		if(loadedAll)
+			return;
+
+		Cursor c = getReadableDatabase().query("books", COLUMNS, null, null, null, null, null);
+		try
+		{
+			while(c.moveToNext())
+			{
+				Book book = readBook(c);
+				synchronized(books)
+				{
+					if(!books.containsKey(book.path))
+						books.put(book.path, book);
+				}
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		loadedAll = true;
+	}
+
+	/**
+	 * Records what the crawler read from the file, keeping what the reader saved.
+	 */
+	public synchronized void saveMetadata(String path, long modified, long size, int pages,
+		String title, String author, String thumbnail)
+	{
+		Book book = getOrCreate(path);
+		book.modified = modified;
+		book.size = size;
+		book.pages = pages;
+		book.title = title;
+		book.author = author;
+		book.thumbnail = thumbnail;
+
+		ContentValues values = new ContentValues();
+		values.put("modified", modified);
+		values.put("size", size);
+		values.put("pages", pages);
+		values.put("title", title);
+		values.put("author", author);
+		values.put("thumbnail", thumbnail);
+		update(path, values);
+	}
+
+	/**
+	 * Records what the reader saved, in one write. Use DocumentState rather than calling
+	 *	this directly, it keeps the disk off the UI thread.
+	 */
+	public synchronized void saveState(String path, int lastPage, int[] crop, int[] evenCrop,
+		Map<Integer, int[]> pageCrops)
+	{
+		Book book = getOrCreate(path);
+		book.lastPage = lastPage;
+		book.crop = crop;
+		book.evenCrop = evenCrop;
+
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try
+		{
+			ContentValues values = new ContentValues();
+			values.put("last_page", lastPage);
+			putBox(values, "crop_", crop);
+			putBox(values, "crop_even_", evenCrop);
+			update(path, values);
+
+			//there are only ever a handful, just rewrite them
+			db.delete("page_crops", "path = ?", new String[] { path });
+			for(Map.Entry<Integer, int[]> e : pageCrops.entrySet())
+			{
+				ContentValues row = new ContentValues();
+				row.put("path", path);
+				row.put("page", e.getKey());
+				putBox(row, "crop_", e.getValue());
+				db.insertWithOnConflict("page_crops", null, row, SQLiteDatabase.CONFLICT_REPLACE);
+			}
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * The crop boxes of single pages, by page index.
+	 */
+	public synchronized HashMap<Integer, int[]> getPageCrops(String path)
+	{
+		HashMap<Integer, int[]> crops = new HashMap<Integer, int[]>();
+
+		Cursor c = getReadableDatabase().query("page_crops",
+			new String[] { "page", "crop_left", "crop_top", "crop_right", "crop_bottom" },
+			"path = ?", new String[] { path }, null, null, null);
+		try
+		{
+			while(c.moveToNext())
+				crops.put(c.getInt(0), readBox(c, 1));
+		}
+		finally
+		{
+			c.close();
+		}
+
+		return crops;
+	}
+
+	private static void putBox(ContentValues values, String prefix, int[] box)
+	{
+		String[] sides = { "left", "top", "right", "bottom" };
+		for(int i = 0; i < 4; i++)
+		{
+			if(box == null)
+				values.putNull(prefix + sides[i]);
+			else
+				values.put(prefix + sides[i], box[i]);
+		}
+	}
+
+	private static int[] readBox(Cursor c, int column)
+	{
+		if(c.isNull(column))
+			return null;
+		return new int[] { c.getInt(column), c.getInt(column + 1),
+			c.getInt(column + 2), c.getInt(column + 3) };
+	}
+
+	private Book getOrCreate(String path)
+	{
+		Book book = getBook(path);
+		if(book == null)
+		{
+			book = new Book(path);
+			synchronized(books) { books.put(path, book); }
+		}
+		return book;
+	}
+
+	private void update(String path, ContentValues values)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+
+		if(db.update("books", values, "path = ?", new String[] { path }) == 0)
+		{
+			values.put("path", path);
+			db.insertWithOnConflict("books", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		}
+	}
+
+	private static Book readBook(Cursor c)
+	{
+		Book book = new Book(c.getString(0));
+		book.modified = c.getLong(1);
+		book.size = c.getLong(2);
+		book.pages = c.getInt(3);
+		book.title = c.getString(4);
+		book.author = c.getString(5);
+		book.lastPage = c.getInt(6);
+		book.crop = readBox(c, 7);
+		book.thumbnail = c.getString(11);
+		book.evenCrop = readBox(c, 12);
+		return book;
+	}
+
+	/**
+	 * Moves the "pdf_page:<path>" and "crop:<path>:..." preferences of older versions into
+	 *	the new table and drops them, they only ever grew.
+	 */
+	private void importPreferences(SQLiteDatabase db)
+	{
+		HashMap<String, ContentValues> rows = new HashMap<String, ContentValues>();
+
+		SharedPreferences pages = context.getSharedPreferences("PdfActivity", Activity.MODE_PRIVATE);
+		for(Map.Entry<String, ?> e : pages.getAll().entrySet())
+		{
+			if(e.getKey().startsWith("pdf_page:") && e.getValue() instanceof Integer)
+			{
+				String path = e.getKey().substring("pdf_page:".length());
+				importRow(rows, path).put("last_page", (Integer)e.getValue());
+			}
+		}
+
+		SharedPreferences crops = context.getSharedPreferences("pdf_files", Activity.MODE_PRIVATE);
+		for(Map.Entry<String, ?> e : crops.getAll().entrySet())
+		{
+			String key = e.getKey();
+			int side = key.lastIndexOf(':');
+			if(!key.startsWith("crop:") || side < 0 || !(e.getValue() instanceof Integer))
+				continue;
+
+			String path = key.substring("crop:".length(), side);
+			importRow(rows, path).put("crop_" + key.substring(side + 1), (Integer)e.getValue());
+		}
+
+		for(Map.Entry<String, ContentValues> e : rows.entrySet())
+		{
+			ContentValues values = e.getValue();
+
+			//a crop is only usable with all four sides
+			if(!values.containsKey("crop_left") || !values.containsKey("crop_top") ||
+				!values.containsKey("crop_right") || !values.containsKey("crop_bottom"))
+			{
+				values.remove("crop_left");
+				values.remove("crop_top");
+				values.remove("crop_right");
+				values.remove("crop_bottom");
+			}
+
+			db.insertWithOnConflict("books", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		}
+
+		Log.v(TAG, "imported " + rows.size() + " books from the preferences");
+
+		pages.edit().clear().commit();
+		crops.edit().clear().commit();
+	}
+
+	private static ContentValues importRow(HashMap<String, ContentValues> rows, String path)
+	{
+		ContentValues values = rows.get(path);
+		if(values == null)
+		{
+			values = new ContentValues();
+			values.put("path", path);
+			rows.put(path, values);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,212 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.util.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * The bookmarks of a document, flattened depth first: every entry has a nesting level,
+ *	a title and the page it points at (-1 for targets outside the document). Kept in
+ *	memory for the last few documents and on disk, so only the first open pays for
+ *	walking the outline tree.
+ */
+public class Outline
+{
+	private static final int FILE_VERSION = 1;
+	private static final int MEMORY_ENTRIES = 8;
+
+	private static final LinkedHashMap<String, Outline> memory =
+		new LinkedHashMap<String, Outline>(MEMORY_ENTRIES, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Outline> eldest) {
+				return size() > MEMORY_ENTRIES;
+			}
+		};
+
+	private static final String TAG = "PdfTab";
+
+	//the titles back to back, entry i is [titleOffsets[i], titleOffsets[i + 1])
+	private final char[] titles;
+	private final int[] titleOffsets;
+	private final int[] levels;
+	private final int[] pages;
+
+	public Outline()
+	{
+		this(new char[0], new int[] { 0 }, new int[0], new int[0]);
+	}
+
+	//built by the native outline loader in a single call
+	public Outline(char[] titles, int[] titleOffsets, int[] levels, int[] pages)
+	{
+		this.titles = titles;
+		this.titleOffsets = titleOffsets;
+		this.levels = levels;
+		this.pages = pages;
+	}
+
+	public int getCount() { return levels.length; }
+	public int getLevel(int entry) { return levels[entry]; }
+	public int getPage(int entry) { return pages[entry]; }
+
+	public String getTitle(int entry)
+	{
+		return new String(titles, titleOffsets[entry], titleOffsets[entry + 1] - titleOffsets[entry]);
+	}
+
+	/**
+	 * The last entry at or before the page, the one the reader is "in", or -1.
+	 */
+	public int findEntry(int page)
+	{
+		int found = -1;
+		for(int i = 0; i < pages.length; i++)
+		{
+			if(pages[i] >= 0 && pages[i] <= page)
+				found = i;
+		}
+		return found;
+	}
+
+	/**
+	 * The cached outline of the core's document if there is one, without touching the
+	 *	disk, for the UI thread.
+	 */
+	public static Outline peek(PdfCore core)
+	{
+		synchronized(memory)
+		{
+			return memory.get(core.getCacheKey());
+		}
+	}
+
+	/**
+	 * The outline of the core's document from the memory or disk cache, or read from
+	 *	the file (and cached) if this version of it hasn't been seen yet. Reads the disk,
+	 *	so not on the UI thread.
+	 */
+	public static Outline get(Context context, PdfCore core)
+	{
+		String key = core.getCacheKey();
+
+		Outline outline = peek(core);
+		if(outline != null)
+			return outline;
+
+		File f = new File(new File(context.getCacheDir(), "outlines"), fileName(key));
+		outline = read(f);
+		if(outline == null)
+		{
+			long begin = System.currentTimeMillis();
+			outline = core.getOutline();
+			Log.v(TAG, String.format("outline: %d entries in %d ms", outline.getCount(),
+				System.currentTimeMillis() - begin));
+			write(f, outline);
+		}
+
+		synchronized(memory)
+		{
+			memory.put(key, outline);
+		}
+		return outline;
+	}
+
+	private static Outline read(File f)
+	{
+		if(!f.exists())
+			return null;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if(in.readInt() != FILE_VERSION)
+				return null;
+
+			int count = in.readInt();
+			int[] levels = new int[count];
+			int[] pages = new int[count];
+			int[] offsets = new int[count + 1];
+			char[] titles = new char[in.readInt()];
+
+			for(int i = 0; i < count; i++)
+			{
+				levels[i] = in.readInt();
+				pages[i] = in.readInt();
+				offsets[i + 1] = in.readInt();
+			}
+			for(int i = 0; i < titles.length; i++)
+				titles[i] = in.readChar();
+
+			return new Outline(titles, offsets, levels, pages);
+		}
+		catch(Exception e)
+		{
+			Log.w(TAG, "can't read outline " + f + ": " + e);
+			f.delete();
+			return null;
+		}
+		finally
+		{
+			if(in != null)
+				try { in.close(); } catch(IOException e) { }
+		}
+	}
+
+	private static void write(File f, Outline outline)
+	{
+		f.getParentFile().mkdirs();
+		File tmp = new File(f.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FILE_VERSION);
+			out.writeInt(outline.getCount());
+			out.writeInt(outline.titles.length);
+			for(int i = 0; i < outline.getCount(); i++)
+			{
+				out.writeInt(outline.levels[i]);
+				out.writeInt(outline.pages[i]);
+				out.writeInt(outline.titleOffsets[i + 1]);
+			}
+			for(char c : outline.titles)
+				out.writeChar(c);
+			out.close();
+			out = null;
+
+			//never leave a half written file where a reader could find it
+			if(!tmp.renameTo(f))
+				tmp.delete();
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "can't write outline " + f + ": " + e);
+			tmp.delete();
+		}
+		finally
+		{
+			if(out != null)
+				try { out.close(); } catch(IOException e) { }
+		}
+	}
+
+	private static String fileName(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 8);
+			for(byte b : digest)
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.append(".outline").toString();
+		}
+		catch(Exception e)
+		{
+			return Integer.toHexString(key.hashCode()) + ".outline";
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package cam.pdftab;
+
+import java.util.*;
+
+/**
+ * The links of one page, boxes in page units, with a coarse grid over them so a tap
+ *	only looks at the few links near it. A link goes either to a page of this document
+ *	(and maybe a spot on it) or out to a URI.
+ */
+public class PageLinks
+{
+	private static final int GRID = 8;
+
+	//left, top, right, bottom per link
+	private final int[] boxes;
+
+	//target page index of each link, -1 if it doesn't go to a page of this document
+	private final int[] pages;
+
+	//x, y per link of where on the target page it goes, page units, -1 if unspecified
+	private final int[] targets;
+
+	//the URI of each link that leaves the document, null for the others
+	private final String[] uris;
+
+	//links overlapping each cell, cells row by row
+	private final int[][] cells;
+	private final int cellWidth, cellHeight;
+
+	public PageLinks()
+	{
+		this(new int[0], new int[0], new int[0], new String[0]);
+	}
+
+	//built by the native link loader in a single call
+	public PageLinks(int[] boxes, int[] pages, int[] targets, String[] uris)
+	{
+		this.boxes = boxes;
+		this.pages = pages;
+		this.targets = targets;
+		this.uris = uris;
+
+		int right = 1, bottom = 1;
+		for(int i = 0; i < getCount(); i++)
+		{
+			right = Math.max(right, boxes[i * 4 + 2]);
+			bottom = Math.max(bottom, boxes[i * 4 + 3]);
+		}
+		cellWidth = (right + GRID - 1) / GRID;
+		cellHeight = (bottom + GRID - 1) / GRID;
+
+		int[] sizes = new int[GRID * GRID];
+		int[][] cells = null;
+		for(int pass = 0; pass < 2; pass++)
+		{
+			if(pass == 1)
+			{
+				cells = new int[GRID * GRID][];
+				for(int c = 0; c < cells.length; c++)
+					cells[c] = new int[sizes[c]];
+				Arrays.fill(sizes, 0);
+			}
+
+			for(int i = 0; i < getCount(); i++)
+			{
+				for(int y = cellY(boxes[i * 4 + 1]); y <= cellY(boxes[i * 4 + 3]); y++)
+				{
+					for(int x = cellX(boxes[i * 4]); x <= cellX(boxes[i * 4 + 2]); x++)
+					{
+						if(pass == 1)
+							cells[y * GRID + x][sizes[y * GRID + x]] = i;
+						sizes[y * GRID + x]++;
+					}
+				}
+			}
+		}
+		this.cells = cells;
+	}
+
+	private int cellX(int x) { return Math.max(0, Math.min(GRID - 1, x / cellWidth)); }
+	private int cellY(int y) { return Math.max(0, Math.min(GRID - 1, y / cellHeight)); }
+
+	public int getCount() { return pages.length; }
+	public int getPage(int link) { return pages[link]; }
+	public int getTargetX(int link) { return targets[link * 2]; }
+	public int getTargetY(int link) { return targets[link * 2 + 1]; }
+	public String getUri(int link) { return uris[link]; }
+
+	/**
+	 * The link under the point, the smallest one if they overlap, or -1.
+	 */
+	public int find(int x, int y)
+	{
+		int found = -1;
+		long foundArea = Long.MAX_VALUE;
+
+		for(int i : cells[cellY(y) * GRID + cellX(x)])
+		{
+			if(x < boxes[i * 4] || x > boxes[i * 4 + 2] || y < boxes[i * 4 + 1] || y > boxes[i * 4 + 3])
+				continue;
+
+			long area = (long)(boxes[i * 4 + 2] - boxes[i * 4]) * (boxes[i * 4 + 3] - boxes[i * 4 + 1]);
+			if(area < foundArea)
+			{
+				found = i;
+				foundArea = area;
+			}
+		}
+
+		return found;
+	}
+}
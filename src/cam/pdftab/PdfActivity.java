@@ -2,9 +2,11 @@ package cam.pdftab;
 import cam.pdftab.PixmapView;
 
 import java.io.*;
+import java.util.*;
 import android.app.*;
 import android.os.*;
 import android.content.*;
+import android.net.*;
 import android.view.*;
 import android.view.animation.*;
 import android.widget.*;
@@ -13,6 +15,7 @@ import android.util.*;
 public class PdfActivity extends Activity
 {
 	private static final int CROP_RESPONSE = 1;
+	private static final int TOC_RESPONSE = 2;
 
 	private final String TAG = "PdfTab";
 	private final int currentPageTimeout = 2000;
@@ -27,6 +30,13 @@ public class PdfActivity extends Activity
 	private Animation fadeOut;
 	private Animation slideDown;
 	private Animation slideUp;
+	private SearchIndex searchIndex = null;
+	private SearchIndexer searchIndexer = null;
+	private PdfSearch pdfSearch = null;
+	private int searchGeneration = 0;
+	private AlertDialog resultDialog = null;
+	private ArrayList<Integer> resultPages = new ArrayList<Integer>();
+	private ArrayAdapter<String> resultAdapter = null;
 
 	public static PdfCore getPdfCore()
 	{
@@ -50,6 +60,9 @@ public class PdfActivity extends Activity
 
 			Log.v(TAG, "ACTION_VIEW");
 			Log.v(TAG, intent.getData().getPath());
+
+			//what we remember about the document is read while it opens
+			DocumentState.get(this, intent.getData().getPath());
 			core = openFile(intent.getData().getPath());
 		}
 		else
@@ -82,8 +95,9 @@ public class PdfActivity extends Activity
 	{
 		super.onPause();
 
-		SharedPreferences settings = getPreferences(Activity.MODE_PRIVATE);
-		settings.edit().putInt("pdf_page:" + core.path, pdfView.getPage() - 1).commit();
+		DocumentState state = DocumentState.get(this, core.path);
+		state.setLastPage(pdfView.getPage() - 1);
+		state.flush();
 		Log.v(TAG, "onPause(page=" + (pdfView.getPage() - 1) + ")");
 	}
 
@@ -91,8 +105,7 @@ public class PdfActivity extends Activity
 	{
 		super.onResume();
 
-		SharedPreferences settings = getPreferences(Activity.MODE_PRIVATE);
-		int restorePage = settings.getInt("pdf_page:" + core.path, 0);
+		int restorePage = DocumentState.get(this, core.path).getLastPage();
 		Log.v(TAG, "onResume(page=" + restorePage + ")");
 		pdfView.setPage(restorePage);
 	}
@@ -101,7 +114,7 @@ public class PdfActivity extends Activity
 	{
 		try
 		{
-			return new PdfCore(path);
+			return PdfCore.open(path);
 		}
 		catch(Exception e)
 		{
@@ -222,6 +235,200 @@ public class PdfActivity extends Activity
 		startActivityForResult(intent, CROP_RESPONSE);
 	}
 
+	public void onContents(View view)
+	{
+		Intent intent = new Intent(this, TocActivity.class);
+		intent.putExtra("pageIndex", pdfView.getPage() - 1);
+		startActivityForResult(intent, TOC_RESPONSE);
+	}
+
+	public void onSearch(View view)
+	{
+		final EditText input = new EditText(this);
+		input.setSingleLine(true);
+		openSearchIndex();
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Search");
+		builder.setView(input);
+		builder.setPositiveButton("Search", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				search(input.getText().toString());
+			}
+		});
+		builder.setNegativeButton("Cancel", null);
+		builder.show();
+	}
+
+	/**
+	 * Answers from the index when this version of the document has one. Otherwise
+	 *	searches the pages outward from the current one, listing hits as they are found,
+	 *	and builds the index afterwards so the next search is instant.
+	 */
+	private void search(final String query)
+	{
+		cancelSearch();
+		pdfView.clearHighlights();
+		if(SearchIndex.splitWords(query).size() == 0)
+			return;
+
+		showResultList(query);
+
+		if(searchIndex != null)
+		{
+			runQuery(query);
+			return;
+		}
+
+		pdfSearch = core.search(query, pdfView.getPage() - 1, new PdfSearch.Listener() {
+			public void onPageHits(int page, List<SearchIndex.Hit> hits) {
+				addResults(page, hits);
+			}
+
+			public void onSearchFinished(int pagesSearched) {
+				pdfSearch = null;
+				finishResults(query);
+				buildSearchIndex();
+			}
+		});
+	}
+
+	private void cancelSearch()
+	{
+		if(pdfSearch != null)
+			pdfSearch.cancel();
+		pdfSearch = null;
+		searchGeneration++;
+	}
+
+	private void runQuery(final String query)
+	{
+		final SearchIndex index = searchIndex;
+		final int generation = searchGeneration;
+
+		//a file read, quick but still not for the UI thread
+		new Thread("Search") {
+			public void run() {
+				final List<SearchIndex.Hit> hits = index.search(query);
+				handler.post(new Runnable() {
+					public void run() {
+						if(isFinishing() || generation != searchGeneration)
+							return;
+
+						//sorted by page, one batch per page like the streaming search
+						for(int i = 0; i < hits.size(); )
+						{
+							int end = i;
+							while(end < hits.size() && hits.get(end).page == hits.get(i).page)
+								end++;
+							addResults(hits.get(i).page, hits.subList(i, end));
+							i = end;
+						}
+						finishResults(query);
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Reads the index of this document if one was built before, so the search about to
+	 *	be typed can use it. Never builds one.
+	 */
+	private void openSearchIndex()
+	{
+		if(searchIndex != null || searchIndexer != null)
+			return;
+
+		final Context context = getApplicationContext();
+		final PdfCore searchCore = core;
+		new Thread("SearchIndex") {
+			public void run() {
+				final SearchIndex index = SearchIndex.open(context, searchCore);
+				handler.post(new Runnable() {
+					public void run() {
+						if(searchIndex == null && core == searchCore)
+							searchIndex = index;
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Indexes the document in the background, nobody waits for it.
+	 */
+	private void buildSearchIndex()
+	{
+		if(searchIndex != null || searchIndexer != null)
+			return;
+
+		searchIndexer = new SearchIndexer(this, core.path, new SearchIndexer.Listener() {
+			public void onIndexProgress(int page, int numPages) {
+			}
+
+			public void onIndexed(SearchIndex index) {
+				searchIndexer = null;
+				if(index != null)
+					searchIndex = index;
+			}
+		});
+		searchIndexer.start();
+	}
+
+	private void showResultList(String query)
+	{
+		if(resultDialog != null)
+			resultDialog.dismiss();
+
+		resultPages = new ArrayList<Integer>();
+		resultAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
+
+		final ArrayList<Integer> pages = resultPages;
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Searching for \"" + query + "\"...");
+		builder.setAdapter(resultAdapter, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int item) {
+				//the search keeps going, more highlights can still come in
+				resultDialog = null;
+				controls.setVisibility(View.INVISIBLE);
+				pdfView.setPage(pages.get(item));
+			}
+		});
+		resultDialog = builder.show();
+	}
+
+	private void addResults(int page, List<SearchIndex.Hit> hits)
+	{
+		pdfView.addHighlights(page, hits);
+
+		//pages come nearest first, the list stays in page order
+		int at = -Collections.binarySearch(resultPages, page) - 1;
+		if(at < 0)
+			return;
+
+		int count = hits.size();
+		resultPages.add(at, page);
+		resultAdapter.insert(String.format("Page %d (%d %s)", page + 1, count,
+			(count == 1) ? "match" : "matches"), at);
+	}
+
+	private void finishResults(String query)
+	{
+		if(resultPages.size() == 0)
+		{
+			if(resultDialog != null)
+				resultDialog.dismiss();
+			resultDialog = null;
+			Toast.makeText(this, "No matches for \"" + query + "\"", Toast.LENGTH_SHORT).show();
+			return;
+		}
+
+		if(resultDialog != null)
+			resultDialog.setTitle(String.format("\"%s\" on %d %s", query, resultPages.size(),
+				(resultPages.size() == 1) ? "page" : "pages"));
+	}
+
 	private void onCropFinish()
 	{
 		Log.v(TAG, "onCropFinish");
@@ -233,6 +440,11 @@ public class PdfActivity extends Activity
 	protected void onActivityResult(int requestCode, int resultCode, Intent data)
 	{
 		if(requestCode == CROP_RESPONSE) onCropFinish();
+		if(requestCode == TOC_RESPONSE && resultCode == RESULT_OK)
+		{
+			controls.setVisibility(View.INVISIBLE);
+			pdfView.setPage(data.getIntExtra("page", 0));
+		}
 	}
 
 	public void onBackPressed()
@@ -246,6 +458,21 @@ public class PdfActivity extends Activity
 		seeker.setProgress(pdfView.getPage() - 1);
 	}
 
+	/**
+	 * Hands a link out of the document to whatever app handles it.
+	 */
+	public void openUri(String uri)
+	{
+		try
+		{
+			startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(uri)));
+		}
+		catch(ActivityNotFoundException e)
+		{
+			Toast.makeText(this, "Nothing can open " + uri, Toast.LENGTH_SHORT).show();
+		}
+	}
+
 	public void clickInControlRegion()
 	{
 		if(controls.getVisibility() == View.INVISIBLE)
@@ -297,9 +524,29 @@ public class PdfActivity extends Activity
 		}
 	};
 
+	//no @Override, the SDK we build against predates onTrimMemory
+	public void onTrimMemory(int level)
+	{
+		Log.v(TAG, "onTrimMemory(" + level + ")");
+		if(pdfView != null)
+			pdfView.trimMemory(level);
+	}
+
+	@Override public void onLowMemory()
+	{
+		super.onLowMemory();
+		if(pdfView != null)
+			pdfView.trimMemory(TileRenderer.TRIM_MEMORY_UI_HIDDEN);
+	}
+
 	public void onDestroy()
 	{
 		Log.v(TAG, "onDestroy");
+		cancelSearch();
+		if(searchIndexer != null)
+			searchIndexer.cancel();
+		if(resultDialog != null)
+			resultDialog.dismiss();
 		if(core != null)
 			core.onDestroy();
 		core = null;
@@ -1,67 +1,317 @@
 package cam.pdftab;
 import android.graphics.*;
+import java.io.*;
+import java.util.*;
 
 public class PdfCore
 {
 	static { System.loadLibrary("mupdf"); }
 
+	//the most recently closed document, kept open so going straight back to it is instant
+	private static PdfCore warmCore = null;
+
+	//pages whose links are kept, tiny next to a rendered page
+	private static final int LINK_CACHE_PAGES = 64;
+
 	public int pageNum;
 	public int numPages;
 	public float pageWidth;
 	public float pageHeight;
 	public final String path;
+	private final long fileModified;
+	private final long fileSize;
+	private final boolean separate;
+	private long handle;
+	private float[] pageSizes;
+	private final LinkedHashMap<Integer, PageLinks> links =
+		new LinkedHashMap<Integer, PageLinks>(LINK_CACHE_PAGES, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, PageLinks> eldest) {
+				return size() > LINK_CACHE_PAGES;
+			}
+		};
 
-	private static native int openFile(String filename);
-	private static native void gotoPageInternal(int localActionPageNum);
-	private static native float getPageWidth();
-	private static native float getPageHeight();
-	private static native void drawPage(int[] pixels,
-		int pageW, int pageH,
-		int patchX, int patchY,
-		int patchW, int patchH,
-		TextSpanData spanData);
-	public static native int findLink(int pageNum,
+	private static native long openFile(String filename);
+	private static native int countPages(long handle);
+	private static native void loadPageSizes(long handle, float[] sizes);
+	private static native boolean drawPageBitmap(long handle, int page, Bitmap bitmap,
 		int pageW, int pageH,
-		int patchX, int patchY,
-		int patchW, int patchH,
-		int x, int y);
-	public static native void destroying();
+		int patchX, int patchY);
+	private static native TextSpanData extractText(long handle, int page,
+		int pageW, int pageH);
+	private static native PageLinks loadLinks(long handle, int page, int pageW, int pageH);
+	private static native void setPageCacheBudget(long handle, int bytes);
+	private static native void getPageCacheStats(long handle, int[] stats);
+	private static native String getMetadata(long handle, String key);
+	private static native Outline loadOutline(long handle);
+	private static native void closeFile(long handle);
+
+	/**
+	 * Opens the file, reusing the previously closed document if it is the same,
+	 *	unchanged file.
+	 */
+	public static PdfCore open(String filename) throws Exception
+	{
+		synchronized(PdfCore.class)
+		{
+			PdfCore warm = warmCore;
+			if(warm != null && warm.path.equals(filename) &&
+				warm.fileModified == new File(filename).lastModified())
+			{
+				warmCore = null;
+				warm.pageNum = 0;
+				return warm;
+			}
+		}
+
+		return new PdfCore(filename, false);
+	}
+
+	/**
+	 * Opens a document of its own, for background work that must not share (or be kept
+	 *	as) the document being read. onDestroy closes it right away.
+	 */
+	public static PdfCore openSeparate(String filename) throws Exception
+	{
+		return new PdfCore(filename, true);
+	}
 
-	public PdfCore(String filename) throws Exception
+	private PdfCore(String filename, boolean separate) throws Exception
 	{
 		path = filename;
-		numPages = openFile(filename);
+		this.separate = separate;
+		fileModified = new File(filename).lastModified();
+		fileSize = new File(filename).length();
+
+		handle = openFile(filename);
+		if(handle == 0)
+			throw new Exception("Failed to open " + filename);
+
+		numPages = countPages(handle);
 		if(numPages <= 0)
+		{
+			closeFile(handle);
+			handle = 0;
 			throw new Exception("Failed to open " + filename);
+		}
 		pageNum = 0;
+
+		//the page sizes come straight from the page tree, so we can get them all
+		//	up front and never have to load a page just to lay it out
+		pageSizes = new float[numPages * 2];
+		loadPageSizes(handle, pageSizes);
 	}
 
-	public static int[] renderPage(
-		int pageW, int pageH,
-		int patchX, int patchY,
-		int patchW, int patchH,
-		TextSpanData spanData)
+	/**
+	 * Identifies this version of the file, for anything cached across runs.
+	 */
+	public String getCacheKey()
 	{
-		int[] ret = new int[patchW * patchH];
-		drawPage(ret, pageW, pageH, patchX, patchY, patchW, patchH, spanData);
-		return ret;
+		return path + "|" + fileModified + "|" + fileSize;
 	}
 
-	public void gotoPage(int page)
+	/**
+	 * Renders the first page of the file width pixels wide, on a document of its own so
+	 *	it never touches the one that is being read. Returns null if the file can't be opened.
+	 */
+	public static Bitmap renderThumbnail(String filename, int width, Bitmap.Config config)
+	{
+		PdfCore core;
+		try { core = openSeparate(filename); }
+		catch(Exception e) { return null; }
+
+		try
+		{
+			int height = (int)(core.getPageHeight(0) * width / core.getPageWidth(0));
+			if(width <= 0 || height <= 0)
+				return null;
+
+			Bitmap thumb = Bitmap.createBitmap(width, height, config);
+			core.drawPage(0, thumb, width, height, 0, 0);
+			return thumb;
+		}
+		finally
+		{
+			core.onDestroy();
+		}
+	}
+
+	/**
+	 * An entry of the document info dictionary ("Title", "Author", ...), null if missing.
+	 */
+	public String getMetadata(String key)
+	{
+		return getMetadata(handle, key);
+	}
+
+	/**
+	 * Reads the whole outline from the file, empty if there is none. Use Outline.get,
+	 *	which caches it.
+	 */
+	public Outline getOutline()
+	{
+		Outline outline = loadOutline(handle);
+		if(outline == null)
+			return new Outline();
+		return outline;
+	}
+
+	/**
+	 * Starts searching the document page by page outward from startPage, on a document
+	 *	of its own. Hits go to the listener on the calling thread as they are found;
+	 *	cancel the returned search when the query changes.
+	 */
+	public PdfSearch search(String query, int startPage, PdfSearch.Listener listener)
+	{
+		PdfSearch search = new PdfSearch(path, query, clampPage(startPage), listener);
+		search.start();
+		return search;
+	}
+
+	private int clampPage(int page)
 	{
 		if(page > numPages-1)
-			page = numPages-1;
+			return numPages-1;
 		else if(page < 0)
-			page = 0;
+			return 0;
+		return page;
+	}
+
+	public float getPageWidth(int page)
+	{
+		return pageSizes[clampPage(page) * 2];
+	}
+
+	public float getPageHeight(int page)
+	{
+		return pageSizes[clampPage(page) * 2 + 1];
+	}
+
+	/**
+	 * Rasterizes the patch of the page at (patchX, patchY) straight into the bitmap's
+	 *	pixels, the patch is the size of the bitmap. The bitmap must be ARGB_8888 or RGB_565.
+	 */
+	public boolean drawPage(int page, Bitmap bitmap,
+		int pageW, int pageH,
+		int patchX, int patchY)
+	{
+		return drawPageBitmap(handle, clampPage(page), bitmap, pageW, pageH, patchX, patchY);
+	}
+
+	/**
+	 * Runs the text device over the page, with glyph boxes in pageW x pageH pixels.
+	 *	This is a full pass over the page, so only call it when the text is needed.
+	 */
+	public TextSpanData getTextSpans(int page, int pageW, int pageH)
+	{
+		TextSpanData spanData = extractText(handle, clampPage(page), pageW, pageH);
+		if(spanData == null)
+			return new TextSpanData();
+		return spanData;
+	}
+
+	/**
+	 * The links of the page with their boxes in page units. Loaded from the page the
+	 *	first time (the tile renderer does that right after drawing it), after that this
+	 *	is a hash lookup.
+	 */
+	public PageLinks getLinks(int page)
+	{
+		page = clampPage(page);
+
+		synchronized(links)
+		{
+			PageLinks l = links.get(page);
+			if(l != null)
+				return l;
+		}
+
+		PageLinks l = loadLinks(handle, page, (int)getPageWidth(page), (int)getPageHeight(page));
+		if(l == null)
+			l = new PageLinks();
+
+		synchronized(links)
+		{
+			links.put(page, l);
+		}
+		return l;
+	}
+
+	/**
+	 * Returns whether the links of the page are loaded, without loading them.
+	 */
+	public boolean hasLinks(int page)
+	{
+		synchronized(links)
+		{
+			return links.containsKey(page);
+		}
+	}
+
+	/**
+	 * Limits the memory used by the parsed pages mupdf keeps around for revisits.
+	 */
+	public void setPageCacheBudget(int bytes)
+	{
+		setPageCacheBudget(handle, bytes);
+	}
+
+	public int getPageCacheHits()
+	{
+		int[] stats = new int[4];
+		getPageCacheStats(handle, stats);
+		return stats[0];
+	}
+
+	public int getPageCacheMisses()
+	{
+		int[] stats = new int[4];
+		getPageCacheStats(handle, stats);
+		return stats[1];
+	}
+
+	public int getPageCacheSize()
+	{
+		int[] stats = new int[4];
+		getPageCacheStats(handle, stats);
+		return stats[2];
+	}
+
+	public void gotoPage(int page)
+	{
+		page = clampPage(page);
 
-		gotoPageInternal(page);
 		this.pageNum = page;
-		this.pageWidth = getPageWidth();
-		this.pageHeight = getPageHeight();
+		this.pageWidth = getPageWidth(page);
+		this.pageHeight = getPageHeight(page);
 	}
 
 	public void onDestroy()
 	{
-		destroying();
+		PdfCore evicted;
+
+		if(separate)
+		{
+			close();
+			return;
+		}
+
+		synchronized(PdfCore.class)
+		{
+			if(warmCore == this)
+				return;
+
+			evicted = warmCore;
+			warmCore = this;
+		}
+
+		if(evicted != null)
+			evicted.close();
+	}
+
+	private void close()
+	{
+		if(handle != 0)
+			closeFile(handle);
+		handle = 0;
 	}
 }
@@ -18,23 +18,52 @@ import java.util.*;
 public class PdfPage
 {
 	private final String TAG = "PdfTab";
+
+	//the quick pass is a quarter of the pixels on each side, a sixteenth of the raster work
+	private static final float PREVIEW_FACTOR = 0.25f;
+
 	private Context context;
 	private PdfCore doc;
-	private Bitmap screenBitmap;
+	private TileRenderer renderer;
 	private int screenWidth, screenHeight;
 	private int screenPageWidth, screenPageHeight;
 	private int docPageWidth, docPageHeight;
 	private float screenScale, pageScale;
+	private float zoom = 1.0f;
+	private float previousScale = 0;
 	private int pageNum;
 	private int cropLineTop, cropLineLeft, cropLineRight, cropLineBottom;
 	private int screenBorderSize = 0;
-	private TextSpanData spanData;
-
-	public PdfPage(Context context, PdfCore doc, int pageNum)
+	private int prefetchMargin = 0;
+	private SearchHighlights highlights = null;
+	private volatile TextSpanData textSpans;
+	private float textSpansScale;
+
+	//the selected glyphs [selectionStart, selectionEnd) of textSpans, and the word the
+	//	selection started on, which stays selected whichever way it is dragged
+	private int selectionStart = -1, selectionEnd = -1;
+	private int anchorStart, anchorEnd;
+	private final Paint paintPlaceholder = new Paint();
+	private final Paint paintFallback = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Paint paintBorder = new Paint();
+	private final Paint paintHighlight = new Paint();
+	private final Paint paintSelection = new Paint();
+
+	public PdfPage(Context context, PdfCore doc, TileRenderer renderer, int pageNum)
 	{
 		this.context = context;
 		this.doc = doc;
+		this.renderer = renderer;
 		this.pageNum = pageNum;
+
+		paintPlaceholder.setColor(0xFFE0E0E0);
+
+		paintBorder.setStrokeWidth(1);
+		paintBorder.setColor(0xFF707070);
+		paintBorder.setStyle(Paint.Style.STROKE);
+
+		paintHighlight.setColor(0x60FFD000);
+		paintSelection.setColor(0x603080FF);
 	}
 
 	public int getPageNum() { return pageNum; }
@@ -52,24 +81,54 @@ public class PdfPage
 		screenBorderSize = border;
 	}
 
-	public void setScreenInfo(int width, int height, int format)
+	/**
+	 * How far past the edges of the screen tiles get queued, so they are usually ready
+	 *	before they scroll into view.
+	 */
+	public void setPrefetchMargin(int margin)
+	{
+		prefetchMargin = margin;
+	}
+
+	public void setHighlights(SearchHighlights highlights)
+	{
+		this.highlights = highlights;
+	}
+
+	public void setScreenInfo(int width, int height)
 	{
 		screenWidth = width;
 		screenHeight = height;
-		init(format);
+		init();
 	}
 
-	private void init(int format)
+	/**
+	 * Multiplies the fit-to-screen scale, 1.0 is the whole page width on the screen.
+	 */
+	public void setZoom(float zoom)
 	{
-		doc.gotoPage(pageNum);
-		docPageHeight = (int)doc.pageHeight;
-		docPageWidth = (int)doc.pageWidth;
+		this.zoom = zoom;
 
-		SharedPreferences settings = context.getSharedPreferences("pdf_files", Activity.MODE_PRIVATE);
-		cropLineLeft = settings.getInt("crop:" + doc.path + ":left", 0);
-		cropLineTop = settings.getInt("crop:" + doc.path + ":top", 0);
-		cropLineRight = settings.getInt("crop:" + doc.path + ":right", (int)docPageWidth);
-		cropLineBottom = settings.getInt("crop:" + doc.path + ":bottom", (int)docPageHeight);
+		if(screenWidth > 0 && screenHeight > 0)
+			init();
+	}
+
+	private void init()
+	{
+		//keep the old scale so its tiles can stand in until the new ones are rendered
+		if(screenScale > 0)
+			previousScale = screenScale;
+
+		docPageHeight = (int)doc.getPageHeight(pageNum);
+		docPageWidth = (int)doc.getPageWidth(pageNum);
+
+		//in memory after the first page of the document
+		int[] crop = new int[4];
+		DocumentState.get(context, doc.path).getCrop(pageNum, crop, docPageWidth, docPageHeight);
+		cropLineLeft = crop[0];
+		cropLineTop = crop[1];
+		cropLineRight = crop[2];
+		cropLineBottom = crop[3];
 
 		//Log.v(TAG, "screenWidth = " + getScreenWidth());
 		//Log.v(TAG, "screenHeight = " + getScreenHeight());
@@ -100,133 +159,395 @@ public class PdfPage
 		}
 		else
 		{
-			pageScale = (float)doc.pageWidth / getCropPageWidth();
+			pageScale = (float)docPageWidth / getCropPageWidth();
 			screenScale = screenScaleX;
 		}
 
+		screenScale *= zoom;
+
 		//Log.v(TAG, "pageScale = " + pageScale);
 		//Log.v(TAG, "screenScale = " + screenScale);
 
 		screenPageWidth = (int)(getCropPageWidth() * screenScale + 0.5);
 		screenPageHeight = (int)(getCropPageHeight() * screenScale + 0.5);
+	}
+
+	private int getRenderPageWidth() { return (int)(docPageWidth * screenScale); }
+	private int getRenderPageHeight() { return (int)(docPageHeight * screenScale); }
+	private int getRenderCropX() { return (int)(cropLineLeft * screenScale); }
+	private int getRenderCropY() { return (int)(cropLineTop * screenScale); }
+	private float getPreviewScale() { return screenScale * PREVIEW_FACTOR; }
+
+	//the scale the page opens at, the only one worth keeping on disk
+	private boolean isBaseScale() { return zoom == 1.0f; }
 
-		renderPage(format);
+	public void prefetch()
+	{
+		prefetch(false);
 	}
 
-	private void renderPage(int format)
+	/**
+	 * Queues the tiles for the first screen-full of the page without drawing anything,
+	 *	from the bottom of the page if it is going to scroll in from the top.
+	 */
+	public void prefetch(boolean fromBottom)
 	{
-		//long begin1 = System.currentTimeMillis();
+		int left = getRenderCropX();
+		int top = getRenderCropY();
+		if(fromBottom)
+			top += screenPageHeight - Math.min(screenPageHeight, screenHeight);
 
-		spanData = new TextSpanData();
-		int size = screenPageWidth * screenPageHeight;
-		int[] pixelBuffer = doc.renderPage(
-			(int)(docPageWidth * screenScale), (int)(docPageHeight * screenScale),
-			(int)(cropLineLeft * screenScale), (int)(cropLineTop * screenScale),
-			screenPageWidth, screenPageHeight,
-			spanData);
+		int lastX = (left + Math.min(screenPageWidth, screenWidth) - 1) / TileRenderer.TILE_SIZE;
+		int lastY = (top + Math.min(screenPageHeight, screenHeight) - 1) / TileRenderer.TILE_SIZE;
 
-		//long duration1 = System.currentTimeMillis() - begin1;
-		//long begin2 = System.currentTimeMillis();
+		for(int ty = top / TileRenderer.TILE_SIZE; ty <= lastY; ty++)
+			for(int tx = left / TileRenderer.TILE_SIZE; tx <= lastX; tx++)
+				renderer.getTile(pageNum, screenScale, getRenderPageWidth(), getRenderPageHeight(), tx, ty, isBaseScale());
 
-		if(format == PixelFormat.RGB_565)
-			screenBitmap = Bitmap.createBitmap(screenPageWidth, screenPageHeight,
-				Bitmap.Config.RGB_565);
-		else
-			screenBitmap = Bitmap.createBitmap(screenPageWidth, screenPageHeight,
-				Bitmap.Config.ARGB_8888);
+		queuePreview(left, top,
+			left + Math.min(screenPageWidth, screenWidth),
+			top + Math.min(screenPageHeight, screenHeight));
+	}
+
+	public void cancelRender()
+	{
+		renderer.cancelPage(pageNum);
+	}
 
-		//long duration2 = System.currentTimeMillis() - begin2;
-		//long begin3 = System.currentTimeMillis();
+	/**
+	 * Extracts the text on the page, unless it already has been at this scale. Goes to
+	 *	mupdf, so never on the UI or draw thread; no lock is held meanwhile, the result
+	 *	is only published under it.
+	 */
+	public void loadTextSpans()
+	{
+		float scale;
+		int pageW, pageH;
+		synchronized(this)
+		{
+			if(textSpans != null && textSpansScale == screenScale)
+				return;
+			scale = screenScale;
+			pageW = getRenderPageWidth();
+			pageH = getRenderPageHeight();
+		}
+
+		TextSpanData spans = doc.getTextSpans(pageNum, pageW, pageH);
+
+		synchronized(this)
+		{
+			//zoomed meanwhile, it is for the wrong scale
+			if(scale != screenScale)
+				return;
+
+			textSpans = spans;
+			textSpansScale = scale;
 
-		screenBitmap.setPixels(pixelBuffer,
-			0, screenPageWidth,
-			0, 0,
-			screenPageWidth, screenPageHeight);
+			//glyph numbers don't carry over to another extraction
+			selectionStart = selectionEnd = -1;
+		}
+	}
 
-		//long duration3 = System.currentTimeMillis() - begin3;
-		//Log.v(TAG, String.format("render : %d,%d,%d ms", duration1, duration2, duration3));
+	/**
+	 * Selects the word at x, y (relative to where the page is blitted), returns false if
+	 *	there is no text there or it hasn't been loaded with loadTextSpans.
+	 */
+	public synchronized boolean startSelection(int x, int y)
+	{
+		if(textSpans == null || textSpansScale != screenScale)
+			return false;
+
+		int glyph = textSpans.findGlyph(toRenderX(x), toRenderY(y));
+		if(glyph < 0)
+			return false;
+
+		int[] word = new int[2];
+		textSpans.getWordAt(glyph, word);
+		anchorStart = selectionStart = word[0];
+		anchorEnd = selectionEnd = word[1];
+		return true;
 	}
 
+	/**
+	 * Stretches the selection from the word it started on to the glyph nearest x, y.
+	 */
+	public synchronized void extendSelection(int x, int y)
+	{
+		if(selectionStart < 0)
+			return;
+
+		int glyph = textSpans.findGlyph(toRenderX(x), toRenderY(y));
+		if(glyph < 0)
+			return;
+
+		selectionStart = Math.min(anchorStart, glyph);
+		selectionEnd = Math.max(anchorEnd, glyph + 1);
+	}
+
+	public synchronized void clearSelection()
+	{
+		selectionStart = selectionEnd = -1;
+	}
+
+	public synchronized boolean hasSelection()
+	{
+		return selectionStart >= 0;
+	}
+
+	/**
+	 * The selected text, null if there is no selection.
+	 */
+	public synchronized String getSelectedText()
+	{
+		if(selectionStart < 0)
+			return null;
+		return textSpans.getText(selectionStart, selectionEnd);
+	}
+
+	//from where the page is blitted to the uncropped page the text was extracted for
+	private int toRenderX(int x) { return x - screenBorderSize + getRenderCropX(); }
+	private int toRenderY(int y) { return y + getRenderCropY(); }
+
+	/**
+	 * The link at x, y (relative to where the page is blitted), an index into
+	 *	doc.getLinks(pageNum), -1 if there is no link there.
+	 */
 	public int findLink(int x, int y)
 	{
-		return doc.findLink(pageNum,
-			(int)(docPageWidth * screenScale), (int)(docPageHeight * screenScale),
-			(int)(cropLineLeft * screenScale), (int)(cropLineTop * screenScale),
-			screenPageWidth, screenPageHeight,
-			x, y);
+		if(screenScale <= 0)
+			return -1;
+
+		return doc.getLinks(pageNum).find((int)(toRenderX(x) / screenScale), (int)(toRenderY(y) / screenScale));
+	}
+
+	/**
+	 * How far below the top of the blitted page a point y page units down the uncropped
+	 *	page is drawn.
+	 */
+	public int toScreenY(int y)
+	{
+		return (int)(y * screenScale) - getRenderCropY();
 	}
 
 	public void blit(Canvas c, int x, int y)
 	{
-		if(screenBitmap == null)
+		if(screenPageWidth <= 0 || screenPageHeight <= 0)
 			return;
 
-		int destX = x;
+		int destX = x + screenBorderSize;
 		int destY = y;
-		int destW = screenPageWidth;
-		int destH = screenPageHeight;
-		int srcX = 0;
-		int srcY = 0;
-
-		Rect border = new Rect(destX+screenBorderSize, destY,
-			destX+screenBorderSize+destW, destY+destH);
-
-		//only blit a screen-full
-		if(destH > screenHeight)
-			destH = screenHeight;
-		if(destW > screenWidth)
-			destW = screenWidth;
-
-		//negative Y
-		if(destY < 0)
+
+		//the part of the (cropped) page that is actually on the screen
+		//	(the canvas may be scaled while a pinch is in progress)
+		Rect clip = new Rect(destX, destY, destX + screenPageWidth, destY + screenPageHeight);
+		Rect visible = new Rect();
+		if(!c.getClipBounds(visible) || !clip.intersect(visible))
+			return;
+
+		//long begin = System.currentTimeMillis();
+
+		//where the uncropped page origin lands on the screen
+		int originX = destX - getRenderCropX();
+		int originY = destY - getRenderCropY();
+		int pageW = getRenderPageWidth();
+		int pageH = getRenderPageHeight();
+
+		int firstX = (clip.left - originX) / TileRenderer.TILE_SIZE;
+		int firstY = (clip.top - originY) / TileRenderer.TILE_SIZE;
+		int lastX = (clip.right - 1 - originX) / TileRenderer.TILE_SIZE;
+		int lastY = (clip.bottom - 1 - originY) / TileRenderer.TILE_SIZE;
+
+		//queue the margin first, the renderer serves the newest requests first so the
+		//	on-screen tiles below still go ahead of these
+		if(prefetchMargin > 0)
+			queueMargin(clip, visible, destX, destY, originX, originY);
+
+		Rect src = new Rect();
+		Rect dest = new Rect();
+		boolean missing = false;
+
+		for(int ty = firstY; ty <= lastY; ty++)
 		{
-			//start into the bitmap destY lines
-			srcY = -destY;
+			for(int tx = firstX; tx <= lastX; tx++)
+			{
+				int tileLeft = originX + tx * TileRenderer.TILE_SIZE;
+				int tileTop = originY + ty * TileRenderer.TILE_SIZE;
+
+				dest.set(tileLeft, tileTop,
+					tileLeft + Math.min(TileRenderer.TILE_SIZE, pageW - tx * TileRenderer.TILE_SIZE),
+					tileTop + Math.min(TileRenderer.TILE_SIZE, pageH - ty * TileRenderer.TILE_SIZE));
+				if(!dest.intersect(clip))
+					continue;
+
+				Bitmap tile = renderer.getTile(pageNum, screenScale, pageW, pageH, tx, ty, isBaseScale());
+				if(tile == null)
+				{
+					//not rendered yet, the tile will be swapped in when it is ready
+					//	in the meantime show the preview, or the old scale if we just zoomed
+					c.drawRect(dest, paintPlaceholder);
+					drawFallback(c, dest, originX, originY, getPreviewScale());
+					drawFallback(c, dest, originX, originY, previousScale);
+					missing = true;
+					continue;
+				}
+
+				src.set(dest.left - tileLeft, dest.top - tileTop,
+					dest.right - tileLeft, dest.bottom - tileTop);
+				c.drawBitmap(tile, src, dest, (Paint)null);
+			}
+		}
+
+		//queued last so it renders first, it is cheap and covers every missing tile
+		if(missing)
+		{
+			queuePreview(clip.left - originX, clip.top - originY,
+				clip.right - originX, clip.bottom - originY);
+		}
 
-			//due to overscroll we may not actually have enough page for this offset
-			if(destH - destY > screenPageHeight)
-				destH = screenPageHeight + destY;
+		if(highlights != null)
+			drawHighlights(c, clip, originX, originY);
 
-			//now draw at the top of the screen
-			destY = 0;
+		synchronized(this)
+		{
+			if(selectionStart >= 0 && textSpansScale == screenScale)
+			{
+				c.save();
+				c.clipRect(clip);
+				textSpans.drawRange(c, originX, originY, selectionStart, selectionEnd, paintSelection);
+				c.restore();
+			}
 		}
-		else if(destY > 0)
+
+		if(screenBorderSize > 0)
 		{
-			destH = screenHeight - destY;
+			c.drawRect(destX, destY, destX + screenPageWidth, destY + screenPageHeight,
+				paintBorder);
 		}
 
-		//max of the available page
-		if(destH > screenPageHeight)
-			destH = screenPageHeight;
+		//long duration = System.currentTimeMillis() - begin;
+		//Log.v(TAG, String.format("  blit : %d ms", duration));
+	}
+
+	/**
+	 * Marks the search hits on the page, their boxes are in page units.
+	 */
+	private void drawHighlights(Canvas c, Rect clip, int originX, int originY)
+	{
+		Rect[] boxes = highlights.get(pageNum);
+		if(boxes == null)
+			return;
+
+		RectF r = new RectF();
+		c.save();
+		c.clipRect(clip);
 
-		//Log.v(TAG, "blit height="+destH+"/"+screenHeight+" @ "+destY);
-		if(destH > 0)
+		for(Rect box : boxes)
 		{
-			//long begin = System.currentTimeMillis();
+			r.set(originX + box.left * screenScale, originY + box.top * screenScale,
+				originX + box.right * screenScale, originY + box.bottom * screenScale);
+			c.drawRect(r, paintHighlight);
+		}
 
-			Rect src = new Rect(0, srcY, destW, srcY+destH);
-			RectF dest = new RectF(destX+screenBorderSize, destY,
-				destX+screenBorderSize+destW, destY+destH);
+		c.restore();
+	}
 
-			c.drawBitmap(screenBitmap, src, dest, (Paint)null);
-			spanData.draw(c, x + screenBorderSize, y);
+	/**
+	 * Queues the tiles within prefetchMargin of the visible part of the page, skipping the
+	 *	ones that are on screen.
+	 */
+	private void queueMargin(Rect clip, Rect visible, int destX, int destY, int originX, int originY)
+	{
+		Rect margin = new Rect(visible);
+		margin.inset(-prefetchMargin, -prefetchMargin);
+		if(!margin.intersect(destX, destY, destX + screenPageWidth, destY + screenPageHeight))
+			return;
 
-			if(screenBorderSize > 0)
+		int pageW = getRenderPageWidth();
+		int pageH = getRenderPageHeight();
+		Rect tile = new Rect();
+
+		for(int ty = (margin.top - originY) / TileRenderer.TILE_SIZE;
+			ty <= (margin.bottom - 1 - originY) / TileRenderer.TILE_SIZE; ty++)
+		{
+			for(int tx = (margin.left - originX) / TileRenderer.TILE_SIZE;
+				tx <= (margin.right - 1 - originX) / TileRenderer.TILE_SIZE; tx++)
 			{
-				Paint paintRect = new Paint();
-				paintRect.setStrokeWidth(1);
-				paintRect.setColor(0xFF707070);
-				paintRect.setStyle(Paint.Style.STROKE);
+				tile.set(originX + tx * TileRenderer.TILE_SIZE, originY + ty * TileRenderer.TILE_SIZE,
+					originX + (tx + 1) * TileRenderer.TILE_SIZE, originY + (ty + 1) * TileRenderer.TILE_SIZE);
+				if(Rect.intersects(tile, clip))
+					continue;
 
-				c.drawRect(border, paintRect);
+				renderer.getTile(pageNum, screenScale, pageW, pageH, tx, ty, isBaseScale());
 			}
+		}
+	}
+
+	/**
+	 * Queues the low resolution tiles covering the given part of the page, which is in
+	 *	full resolution page pixels.
+	 */
+	private void queuePreview(int left, int top, int right, int bottom)
+	{
+		float previewScale = getPreviewScale();
+		int pageW = (int)(docPageWidth * previewScale);
+		int pageH = (int)(docPageHeight * previewScale);
+		if(pageW <= 0 || pageH <= 0 || right <= left || bottom <= top)
+			return;
 
-			//c.drawBitmap(screenBitmap, offset, screenPageWidth,
-				//destX+screenBorderSize, destY+screenBorderSize, destW, destH,
-				//false, (Paint)null);
+		int lastX = (int)((right - 1) * PREVIEW_FACTOR) / TileRenderer.TILE_SIZE;
+		int lastY = (int)((bottom - 1) * PREVIEW_FACTOR) / TileRenderer.TILE_SIZE;
 
-			//long duration = System.currentTimeMillis() - begin;
-			//Log.v(TAG, String.format("  blit : %d ms", duration));
+		for(int ty = (int)(top * PREVIEW_FACTOR) / TileRenderer.TILE_SIZE; ty <= lastY; ty++)
+			for(int tx = (int)(left * PREVIEW_FACTOR) / TileRenderer.TILE_SIZE; tx <= lastX; tx++)
+				renderer.getTile(pageNum, previewScale, pageW, pageH, tx, ty, isBaseScale());
+	}
+
+	/**
+	 * Stretches whatever tiles are cached at another scale over dest, so the page is
+	 *	blurry rather than blank until the sharp tiles come in.
+	 */
+	private void drawFallback(Canvas c, Rect dest, int originX, int originY, float fromScale)
+	{
+		if(fromScale <= 0 || fromScale == screenScale)
+			return;
+
+		//dest in the pixels of the other scale
+		float ratio = fromScale / screenScale;
+		int oldLeft = (int)((dest.left - originX) * ratio);
+		int oldTop = (int)((dest.top - originY) * ratio);
+		int oldRight = (int)Math.ceil((dest.right - originX) * ratio);
+		int oldBottom = (int)Math.ceil((dest.bottom - originY) * ratio);
+		if(oldRight <= oldLeft || oldBottom <= oldTop)
+			return;
+
+		Rect src = new Rect();
+		RectF scaled = new RectF();
+
+		c.save();
+		c.clipRect(dest);
+
+		for(int ty = oldTop / TileRenderer.TILE_SIZE; ty <= (oldBottom - 1) / TileRenderer.TILE_SIZE; ty++)
+		{
+			for(int tx = oldLeft / TileRenderer.TILE_SIZE; tx <= (oldRight - 1) / TileRenderer.TILE_SIZE; tx++)
+			{
+				Bitmap tile = renderer.peekTile(pageNum, fromScale, tx, ty);
+				if(tile == null)
+					continue;
+
+				int tileLeft = tx * TileRenderer.TILE_SIZE;
+				int tileTop = ty * TileRenderer.TILE_SIZE;
+
+				src.set(tileLeft, tileTop, tileLeft + tile.getWidth(), tileTop + tile.getHeight());
+				if(!src.intersect(oldLeft, oldTop, oldRight, oldBottom))
+					continue;
+
+				scaled.set(originX + src.left / ratio, originY + src.top / ratio,
+					originX + src.right / ratio, originY + src.bottom / ratio);
+				src.offset(-tileLeft, -tileTop);
+				c.drawBitmap(tile, src, scaled, paintFallback);
+			}
 		}
+
+		c.restore();
 	}
 }
@@ -0,0 +1,119 @@
+package cam.pdftab;
+
+import android.os.*;
+import android.util.*;
+import java.util.*;
+
+/**
+ * Searches a document without an index, page by page outward from a starting page, so
+ *	the hits nearest the reader come first. Works on its own thread and document, so it
+ *	never waits on the lock of the one being rendered, and hands the hits of every page
+ *	back to the thread that started it as soon as the page is done.
+ */
+public class PdfSearch extends Thread
+{
+	private final String TAG = "PdfTab";
+	private final Handler handler = new Handler();
+	private final String path;
+	private final String query;
+	private final int startPage;
+	private final Listener listener;
+	private volatile boolean cancelled = false;
+
+	public interface Listener
+	{
+		/**
+		 * The hits on one page, only called for pages that have some.
+		 */
+		public void onPageHits(int page, List<SearchIndex.Hit> hits);
+
+		/**
+		 * Every page has been searched (not called when cancelled).
+		 */
+		public void onSearchFinished(int pagesSearched);
+	}
+
+	public PdfSearch(String path, String query, int startPage, Listener listener)
+	{
+		super("PdfSearch");
+		this.path = path;
+		this.query = query;
+		this.startPage = startPage;
+		this.listener = listener;
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	public String getQuery() { return query; }
+
+	/**
+	 * Stops after the page being searched, nothing more gets reported.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public void run()
+	{
+		ArrayList<String> words = new ArrayList<String>();
+		for(String word : SearchIndex.splitWords(query))
+			words.add(SearchIndex.normalize(word));
+
+		PdfCore core;
+		try { core = PdfCore.openSeparate(path); }
+		catch(Exception e)
+		{
+			Log.w(TAG, "search: " + e);
+			finished(0);
+			return;
+		}
+
+		long begin = System.currentTimeMillis();
+		int searched = 0;
+		try
+		{
+			int start = Math.max(0, Math.min(startPage, core.numPages - 1));
+
+			//start, start + 1, start - 1, start + 2, ... until both ends are reached
+			for(int step = 0; !cancelled && step < core.numPages * 2; step++)
+			{
+				int page = (step % 2 == 0) ? start + step / 2 : start - (step + 1) / 2;
+				if(page < 0 || page >= core.numPages)
+					continue;
+
+				final int hitPage = page;
+				final List<SearchIndex.Hit> hits = SearchIndex.matchPage(
+					SearchIndex.getPageText(core, page), page, words);
+				searched++;
+
+				if(hits.size() > 0)
+				{
+					handler.post(new Runnable() {
+						public void run() {
+							if(!cancelled)
+								listener.onPageHits(hitPage, hits);
+						}
+					});
+				}
+			}
+		}
+		finally
+		{
+			core.onDestroy();
+		}
+
+		Log.v(TAG, String.format("search \"%s\": %d pages in %d ms%s", query, searched,
+			System.currentTimeMillis() - begin, cancelled ? " (cancelled)" : ""));
+		finished(searched);
+	}
+
+	private void finished(final int searched)
+	{
+		handler.post(new Runnable() {
+			public void run() {
+				if(!cancelled)
+					listener.onSearchFinished(searched);
+			}
+		});
+	}
+}
@@ -17,22 +17,32 @@ import java.util.*;
 
 public class PixmapView extends SurfaceView
 	implements SurfaceHolder.Callback, cam.pdftab.GestureDetector.OnGestureListener,
-	ScaleGestureDetector.OnScaleGestureListener
+	ScaleGestureDetector.OnScaleGestureListener, TileRenderer.Listener
 {
 	protected final static int MODE_SINGLE_PAGE = 1;
 	protected final static int MODE_CONTINUOUS = 2;
 	protected final static String TAG = "PdfTab";
 	protected final static int pageBorderSize = 10;
+	protected final static float minZoom = 1.0f;
+	protected final static float maxZoom = 4.0f;
+	protected final static int maxPrefetchPages = 6;
+	protected final static int maxLayoutPages = maxPrefetchPages + 6;
 
 	protected final cam.pdftab.GestureDetector gestureDetector;
 	protected final ScaleGestureDetector scaleGestureDetector;
 	private PdfActivity activity;
 	private SurfaceHolder holder;
 	private PdfThread thread = null;
+	private TileRenderer renderer = null;
+	private final SearchHighlights highlights = new SearchHighlights();
 	private PdfCore doc;
 	private boolean isScaling = false;
+	private boolean isSelecting = false;
 	private int screenWidth, screenHeight, screenFormat;
 	private int threadInitialPage = 0;
+	private int prefetchMargin;
+	private int tileCacheBytes;
+	private boolean evictByDistance;
 	private int mode;
 
 	public PixmapView(PdfActivity activity, PdfCore doc)
@@ -44,6 +54,10 @@ public class PixmapView extends SurfaceView
 		this.gestureDetector = new cam.pdftab.GestureDetector(activity, this);
 		this.scaleGestureDetector = new ScaleGestureDetector(activity, this);
 
+		//a quarter of what the system lets us have goes to rendered tiles
+		ActivityManager am = (ActivityManager)activity.getSystemService(Context.ACTIVITY_SERVICE);
+		tileCacheBytes = am.getLargeMemoryClass() / 4 * 1024 * 1024;
+
 		holder = getHolder();
 		holder.addCallback(this);
 		setFocusable(true);
@@ -75,11 +89,62 @@ public class PixmapView extends SurfaceView
 		thread.back();
 	}
 
+	/**
+	 * Marks search hits on their page, on top of any already shown.
+	 */
+	public void addHighlights(int page, List<SearchIndex.Hit> hits)
+	{
+		highlights.add(page, hits);
+		redraw();
+	}
+
+	public void clearHighlights()
+	{
+		highlights.clear();
+		redraw();
+	}
+
+	private void redraw()
+	{
+		PdfThread t = thread;
+		if(t != null)
+			t.redraw();
+	}
+
+	public void trimMemory(int level)
+	{
+		TileRenderer r = renderer;
+		if(r != null)
+			r.trimMemory(level);
+	}
+
 	@Override public boolean onTouchEvent(final MotionEvent event)
 	{
 		if(!activity.canAcceptPageActions())
 			return false;
 
+		//after a long press the finger drags the end of the selection
+		if(isSelecting)
+		{
+			switch(event.getAction() & MotionEvent.ACTION_MASK)
+			{
+				case MotionEvent.ACTION_MOVE:
+					thread.extendSelection(event.getX(), event.getY());
+					break;
+				case MotionEvent.ACTION_UP:
+					isSelecting = false;
+					copySelection();
+					break;
+				case MotionEvent.ACTION_CANCEL:
+					isSelecting = false;
+					break;
+			}
+
+			//still fed the event, so it knows the gesture ended
+			gestureDetector.onTouchEvent(event);
+			return true;
+		}
+
 		if(!thread.onTouchEvent(event))
 		{
 			scaleGestureDetector.onTouchEvent(event);
@@ -123,7 +188,7 @@ public class PixmapView extends SurfaceView
 		if(!activity.canAcceptPageActions())
 			return false;
 
-		Log.d(TAG, "onScale()");
+		thread.scaleBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
 		return true;
 	}
 
@@ -134,6 +199,7 @@ public class PixmapView extends SurfaceView
 
 		Log.d(TAG, "onScaleEnd()");
 		isScaling = false;
+		thread.finishScale();
 	}
 
 	@Override public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY)
@@ -154,7 +220,31 @@ public class PixmapView extends SurfaceView
 		if(isScaling)
 			return;
 
-		Log.d(TAG, "onLongPress(): ignoring!");
+		isSelecting = thread.startSelection(e.getX(), e.getY());
+	}
+
+	/**
+	 * The word under the long press is selected, its text was extracted in the background.
+	 */
+	private void onSelectionStarted()
+	{
+		performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+
+		//the finger was lifted before the text was ready, there won't be a drag
+		if(!isSelecting)
+			copySelection();
+	}
+
+	private void copySelection()
+	{
+		String text = thread.getSelectedText();
+		if(text == null || text.length() == 0)
+			return;
+
+		ClipboardManager clipboard = (ClipboardManager)activity.getSystemService(Context.CLIPBOARD_SERVICE);
+		clipboard.setPrimaryClip(ClipData.newPlainText("PdfTab", text));
+		Toast.makeText(activity, String.format("Copied %d characters", text.length()),
+			Toast.LENGTH_SHORT).show();
 	}
 
 	@Override public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY)
@@ -185,20 +275,46 @@ public class PixmapView extends SurfaceView
 		if(isScaling)
 			return false;
 
+		//a tap only drops the selection, it doesn't turn pages or open the controls
+		if(thread.clearSelection())
+			return true;
+
 		thread.onTap(e.getX(), e.getY());
 		return true;
 	}
 
 	public void surfaceCreated(SurfaceHolder holder)
 	{
+		renderer = new TileRenderer(doc, this);
+		renderer.setEvictionPolicy(getEvictionPolicy());
+		renderer.setDiskCache(DiskTileCache.getInstance(activity));
 		thread = new PdfThread(holder);
 		thread.start();
 	}
 
+	private TileRenderer.EvictionPolicy getEvictionPolicy()
+	{
+		if(evictByDistance)
+			return TileRenderer.EVICT_DISTANCE;
+		return TileRenderer.EVICT_LRU;
+	}
+
+	public void onTileReady(int page)
+	{
+		PdfThread t = thread;
+		if(t != null)
+			t.redraw();
+	}
+
 	public void pageStyleChanged()
 	{
 		SharedPreferences settings = activity.getSharedPreferences("options", Activity.MODE_PRIVATE);
 		mode = settings.getInt("page_style", MODE_CONTINUOUS);
+		prefetchMargin = settings.getInt("prefetch_margin", TileRenderer.TILE_SIZE / 2);
+		evictByDistance = settings.getBoolean("evict_by_distance", true);
+
+		if(renderer != null)
+			renderer.setEvictionPolicy(getEvictionPolicy());
 
 		if(thread != null)
 			thread.screenChanged();
@@ -210,6 +326,20 @@ public class PixmapView extends SurfaceView
 		screenWidth = width;
 		screenHeight = height;
 		screenFormat = format;
+
+		//keep about four screens worth of tiles around
+		int tilesAcross = width / TileRenderer.TILE_SIZE + 2;
+		int tilesDown = height / TileRenderer.TILE_SIZE + 2;
+		renderer.setFormat(format);
+		//never less than a couple of screens, or we would evict what we are drawing
+		int bytesPerPixel = (format == PixelFormat.RGB_565) ? 2 : 4;
+		int screenBytes = tilesAcross * tilesDown *
+			TileRenderer.TILE_SIZE * TileRenderer.TILE_SIZE * bytesPerPixel;
+		renderer.setMaxBytes(Math.max(tileCacheBytes, screenBytes * 2));
+
+		//enough spare tiles to cover a screen without allocating
+		renderer.getBitmapPool().setMaxBytes(screenBytes);
+
 		thread.screenChanged();
 	}
 
@@ -231,6 +361,10 @@ public class PixmapView extends SurfaceView
 		}
 
 		thread = null;
+
+		//must finish before the activity gets a chance to destroy the document
+		renderer.shutdown();
+		renderer = null;
 		Log.v(TAG, "surfaceDestroyed");
 	}
 
@@ -247,15 +381,22 @@ public class PixmapView extends SurfaceView
 		private boolean pageTurnRight = false;
 		private int scrollingOffsetX = 0;
 		private java.util.Stack<Integer> stack = new java.util.Stack<Integer>();
-		private PdfPageLayout[] pages;
+		private ArrayList<Integer> prefetchPages = new ArrayList<Integer>();
+		private int scrollDirection = 0;
+		private HashMap<Integer, PdfPageLayout> pages = new HashMap<Integer, PdfPageLayout>();
 		private int currentPage = -1;
+		private float zoom = minZoom;
+		private float gestureZoom = 1.0f;
+		private float gestureFocusX, gestureFocusY;
+		private int panX = 0;
+		private PdfPageLayout selectionPage = null;
+		private int selectionGeneration = 0;
 
 		public PdfThread(SurfaceHolder holder)
 		{
 			running = true;
 			this.holder = holder;
 			this.scroller = new OverScroller(activity);
-			pages = new PdfPageLayout[4];
 		}
 
 		public OverScroller getScroller() { return scroller; }
@@ -267,94 +408,146 @@ public class PixmapView extends SurfaceView
 				return null;
 
 			//already have the page cached?
-			for(int i = 0; i < pages.length; i++)
-			{
-				if(pages[i] != null && pages[i].getPageNum() == page)
-					return pages[i];
-			}
+			PdfPageLayout p = pages.get(page);
+			if(p != null)
+				return p;
 
-			//do we have a free spot for the page?
-			for(int i = 0; i < pages.length; i++)
+			//the layouts are small, the pixels are bounded by the tile renderer, so we only
+			//	hold a few more than the screen and the predicted pages
+			if(pages.size() >= maxLayoutPages)
 			{
-				if(pages[i] == null)
-				{
-					pages[i] = new PdfPageLayout(page);
-					dumpPageList();
-					return pages[i];
-				}
-			}
-
-			int chosen = 0;
-
-			//no free spots so we have to overwrite somebody
-			for(int i = 1; i < pages.length; i++)
-			{
-				int dist0 = page - pages[chosen].getPageNum();
-				int dist1 = page - pages[i].getPageNum();
-
-				if(dist0 < 0) dist0 = -dist0;
-				if(dist1 < 0) dist1 = -dist1;
+				int chosen = -1;
 
-				//if this has a larget diff than the chosen one choose this one
-				if(dist1 > dist0)
+				for(int candidate : pages.keySet())
 				{
-					chosen = i;
-				}
-				//if the diff are the same choose the one with the lower page number
-				else if(dist0 == dist1)
-				{	
-					if(pages[i].getPageNum() < pages[chosen].getPageNum())
-						chosen = i;
+					int dist0 = Math.abs(page - chosen);
+					int dist1 = Math.abs(page - candidate);
+
+					//farthest from the new page, the lower page number if there is a tie
+					if(chosen < 0 || dist1 > dist0 || (dist1 == dist0 && candidate < chosen))
+						chosen = candidate;
 				}
-			}
 
-			Log.v(TAG, String.format("no free pages, evicting %d for new page %d",
-				pages[chosen].getPageNum(), page));
+				Log.v(TAG, String.format("no free pages, evicting %d for new page %d",
+					chosen, page));
+				pages.remove(chosen).cancelRender();
+			}
 
-			//load the new page
-			pages[chosen] = new PdfPageLayout(page);
+			p = new PdfPageLayout(page);
+			pages.put(page, p);
 			dumpPageList();
-			return pages[chosen];
+			return p;
 		}
 
 		private void dumpPageList()
 		{
 			String dump = "page list: ";
 
-			for(int i = 0; i < pages.length; i++)
+			Integer[] list = pages.keySet().toArray(new Integer[0]);
+			Arrays.sort(list);
+			for(int i = 0; i < list.length; i++)
 			{
 				if(i != 0)
 					dump = dump + ",";
 
-				if(pages[i] == null)
-					dump = dump + "F";
-				else
-				{
-					dump = dump + pages[i].getPageNum();
-					if(pages[i].getPageNum() == currentPage)
-						dump = dump + "*";
-				}
+				dump = dump + list[i];
+				if(list[i] == currentPage)
+					dump = dump + "*";
 			}
 
 			Log.v(TAG, dump);
+
+			BitmapPool pool = renderer.getBitmapPool();
+			Log.v(TAG, String.format("tile cache: %d bytes; bitmap pool: %d hits, %d misses, %d bytes retained",
+				renderer.getCacheBytes(), pool.getHits(), pool.getMisses(), pool.getRetainedBytes()));
 		}
 
-		private void cacheAdditionalPages()
+		/**
+		 * Queues the pages that are about to come into view. During a fling the scroller
+		 *	already knows where it will stop, so every page up to there is predicted;
+		 *	otherwise we look a screen ahead in the direction of the last scroll.
+		 */
+		private void schedulePrefetch()
 		{
+			ArrayList<Integer> predicted = new ArrayList<Integer>();
+			int firstBelow = currentPage + 1;
+
 			if(mode == MODE_SINGLE_PAGE)
 			{
-				if(currentPage < doc.numPages)
-					getPage(currentPage + 1);
+				if(currentPage < doc.numPages - 1)
+					predicted.add(currentPage + 1);
 				if(currentPage > 0)
-					getPage(currentPage - 1);
+					predicted.add(currentPage - 1);
 			}
 			else
 			{
-				if(currentPage > 0)
-					getPage(currentPage - 1);
-				if(currentPage < doc.numPages)
-					getPage(currentPage + 1);
+				int direction, distance;
+				PdfPageLayout cp = getPage(currentPage);
+				if(cp == null)
+					return;
+
+				if(!scroller.isFinished())
+				{
+					int remaining = scroller.getFinalY() - scroller.getCurrY();
+					direction = Integer.signum(remaining);
+					distance = Math.abs(remaining);
+				}
+				else
+				{
+					direction = scrollDirection;
+					distance = screenHeight;
+				}
+
+				//skip past the pages that are on the screen now
+				int below = -cp.offsetY + cp.getPageHeight();
+				while(below < screenHeight && firstBelow < doc.numPages)
+					below += getPage(firstBelow++).getPageHeight();
+
+				//nearest first
+				if(direction >= 0)
+				{
+					for(int i = firstBelow; i < doc.numPages && predicted.size() < maxPrefetchPages; i++)
+					{
+						if(below >= screenHeight + distance && predicted.size() > 0)
+							break;
+
+						predicted.add(i);
+						below += getPage(i).getPageHeight();
+					}
+				}
+
+				if(direction <= 0)
+				{
+					int above = -cp.offsetY;
+					for(int i = currentPage - 1; i >= 0 && predicted.size() < maxPrefetchPages; i--)
+					{
+						if(above <= -distance && predicted.size() > 0)
+							break;
+
+						predicted.add(i);
+						above -= getPage(i).getPageHeight();
+					}
+				}
+			}
+
+			if(predicted.equals(prefetchPages))
+				return;
+
+			//anything we no longer expect to see is stale, unless it is on the screen
+			for(Integer page : prefetchPages)
+			{
+				if(!predicted.contains(page) && (page < currentPage || page >= firstBelow))
+					getPage(page).cancelRender();
+			}
+
+			//the renderer serves the newest request first, so queue the nearest page last
+			for(int i = predicted.size() - 1; i >= 0; i--)
+			{
+				int page = predicted.get(i);
+				getPage(page).prefetch(page < currentPage);
 			}
+
+			prefetchPages = predicted;
 		}
 
 		public void setPage(int page)
@@ -371,6 +564,32 @@ public class PixmapView extends SurfaceView
 			redraw();
 		}
 
+		/**
+		 * Goes to the page with the point y page units down it at the top of the screen,
+		 *	as far as the page can scroll there.
+		 */
+		public void setPage(int page, int targetY)
+		{
+			setPage(page);
+			if(targetY < 0)
+				return;
+
+			synchronized(this)
+			{
+				PdfPageLayout cp = getPage(currentPage);
+				if(cp == null)
+					return;
+
+				int offset = cp.toScreenY(targetY);
+				if(mode == MODE_SINGLE_PAGE)
+					offset = Math.min(offset, cp.getPageHeight() - screenHeight);
+				else
+					offset -= pageBorderSize;
+				cp.offsetY = Math.max(offset, (mode == MODE_SINGLE_PAGE) ? 0 : -pageBorderSize);
+			}
+			redraw();
+		}
+
 		public void stopRunning()
 		{
 			running = false;
@@ -397,12 +616,13 @@ public class PixmapView extends SurfaceView
 
 		private void updateActivityCurrentPage()
 		{
+			renderer.setCurrentPage(currentPage);
 			activity.showCurrentPage();
 		}
 
 		public synchronized void screenChanged()
 		{
-			for(PdfPageLayout p : pages)
+			for(PdfPageLayout p : pages.values())
 			{
 				if(p != null)
 				{
@@ -413,16 +633,91 @@ public class PixmapView extends SurfaceView
 					else
 						p.setScreenPadding(0);
 
-					p.setScreenInfo(screenWidth, screenHeight, screenFormat);
+					p.setPrefetchMargin(prefetchMargin);
+					p.setScreenInfo(screenWidth, screenHeight);
 				}
 			}
 
+			if(currentPage >= 0)
+				clampPanX();
+
 			if(mode == MODE_SINGLE_PAGE)
 				springBack();
 
 			redraw();
 		}
 
+		/**
+		 * Live pinch feedback, the tiles we already have are just stretched on the canvas
+		 *	until the gesture ends, so nothing gets rendered while the fingers are moving.
+		 */
+		public synchronized void scaleBy(float factor, float focusX, float focusY)
+		{
+			float target = Math.max(minZoom, Math.min(maxZoom, zoom * gestureZoom * factor));
+
+			gestureZoom = target / zoom;
+			gestureFocusX = focusX;
+			gestureFocusY = focusY;
+			redraw();
+		}
+
+		/**
+		 * Commits the pinch: the pages switch to the new scale and re-render their visible
+		 *	tiles in the background, showing the old tiles stretched until then.
+		 */
+		public synchronized void finishScale()
+		{
+			float factor = gestureZoom;
+			gestureZoom = 1.0f;
+
+			if(factor != 1.0f)
+			{
+				PdfPageLayout cp = getPage(currentPage);
+				zoom *= factor;
+
+				//keep the point under the fingers where it is
+				int newOffsetY = (int)((cp.offsetY + gestureFocusY) * factor - gestureFocusY);
+				panX = (int)((panX + gestureFocusX) * factor - gestureFocusX);
+
+				for(PdfPageLayout p : pages.values())
+				{
+					if(p != null)
+					{
+						//whatever was queued is at the old scale
+						p.cancelRender();
+						p.setZoom(zoom);
+					}
+				}
+
+				cp.offsetY = newOffsetY;
+				if(currentPage == 0 && cp.offsetY < -pageBorderSize)
+					cp.offsetY = -pageBorderSize;
+				clampPanX();
+
+				if(mode == MODE_SINGLE_PAGE)
+					springBack();
+			}
+
+			redraw();
+		}
+
+		private int getLayoutWidth(PdfPageLayout p)
+		{
+			if(mode == MODE_CONTINUOUS)
+				return p.getPageWidth() + pageBorderSize * 2;
+			return p.getPageWidth();
+		}
+
+		private void clampPanX()
+		{
+			PdfPageLayout cp = getPage(currentPage);
+			if(cp == null)
+				return;
+
+			int maxPanX = getLayoutWidth(cp) - screenWidth;
+			panX = Math.max(0, Math.min(panX, maxPanX));
+		}
+
 		public boolean onTouchEvent(MotionEvent event)
 		{
 			switch(event.getAction() & MotionEvent.ACTION_MASK)
@@ -494,6 +789,8 @@ public class PixmapView extends SurfaceView
 
 			synchronized(this)
 			{
+				panX += (int)distanceX;
+				clampPanX();
          		cp.offsetY += (int)distanceY;
 			}
 			redraw();
@@ -504,7 +801,10 @@ public class PixmapView extends SurfaceView
 			PdfPageLayout cp = getPage(currentPage);
 			synchronized(this)
 			{
+				panX += (int)distanceX;
+				clampPanX();
          		cp.offsetY += (int)distanceY;
+				scrollDirection = Integer.signum((int)distanceY);
 			}
 			redraw();
 		}
@@ -568,6 +868,115 @@ public class PixmapView extends SurfaceView
 			return scroller.computeScrollOffset() || (pageTurnAnimationStart >= 0);
 		}
 
+		/**
+		 * Selects the word under the point on whichever page it is over, once its text
+		 *	has been extracted in the background. Returns false if there is no page there.
+		 */
+		public boolean startSelection(float x, float y)
+		{
+			final PdfPageLayout p;
+			final int pageX, pageY, generation;
+
+			synchronized(this)
+			{
+				clearSelection();
+				if(isAnimating())
+					return false;
+
+				p = getPageAt((int)y);
+				if(p == null)
+					return false;
+
+				selectionPage = p;
+				generation = selectionGeneration;
+				pageX = (int)x - p.getBlitX();
+				pageY = (int)y - p.getBlitY();
+			}
+
+			//mupdf may take a while, and neither the UI nor the draw thread may wait for it
+			new Thread("Selection") {
+				public void run() {
+					p.loadTextSpans();
+
+					synchronized(PdfThread.this)
+					{
+						//cleared or started over meanwhile
+						if(generation != selectionGeneration)
+							return;
+
+						if(!p.startSelection(pageX, pageY))
+						{
+							selectionPage = null;
+							return;
+						}
+					}
+
+					redraw();
+					PixmapView.this.post(new Runnable() {
+						public void run() {
+							onSelectionStarted();
+						}
+					});
+				}
+			}.start();
+
+			return true;
+		}
+
+		/**
+		 * Moves the end of the selection, which stays on the page it started on.
+		 */
+		public synchronized void extendSelection(float x, float y)
+		{
+			if(selectionPage == null)
+				return;
+
+			selectionPage.extendSelection((int)x - selectionPage.getBlitX(),
+				(int)y - selectionPage.getBlitY());
+			redraw();
+		}
+
+		public synchronized String getSelectedText()
+		{
+			if(selectionPage == null)
+				return null;
+			return selectionPage.getSelectedText();
+		}
+
+		/**
+		 * Returns whether there was anything selected.
+		 */
+		public synchronized boolean clearSelection()
+		{
+			//a selection still waiting for its text is dropped too
+			selectionGeneration++;
+			if(selectionPage == null)
+				return false;
+
+			selectionPage.clearSelection();
+			selectionPage = null;
+			redraw();
+			return true;
+		}
+
+		//the laid out page drawn under y on the screen
+		private PdfPageLayout getPageAt(int y)
+		{
+			if(mode == MODE_SINGLE_PAGE)
+				return getPage(currentPage);
+
+			//the same pages drawContinuousPage draws
+			for(int i = 0; i < 10 && currentPage + i < doc.numPages; i++)
+			{
+				PdfPageLayout p = pages.get(currentPage + i);
+				if(p == null)
+					break;
+				if(y >= p.getBlitY() && y < p.getBlitY() + p.getPageHeight())
+					return p;
+			}
+			return null;
+		}
+
 		public void onTap(float x, float y)
 		{
 			if(!isAnimating())
@@ -583,10 +992,10 @@ public class PixmapView extends SurfaceView
 		{
 			PdfPageLayout cp = getPage(currentPage);
 
-			int pageLink = cp.findLink((int)x, (int)y);
-			if(pageLink >= 0)
+			int link = cp.findLink((int)x - cp.getBlitX(), (int)y - cp.getBlitY());
+			if(link >= 0)
 			{
-				setPage(pageLink);
+				followLink(cp.getPageNum(), link);
 			}
 			else if(x >= screenWidth - screenWidth / 4 && cp.getPageNum() < doc.numPages)
 			{
@@ -607,7 +1016,23 @@ public class PixmapView extends SurfaceView
 
 		private void onTapContinuous(float x, float y)
 		{
-			activity.clickInControlRegion(); 
+			PdfPageLayout p = getPageAt((int)y);
+			int link = (p != null) ? p.findLink((int)x - p.getBlitX(), (int)y - p.getBlitY()) : -1;
+
+			if(link >= 0)
+				followLink(p.getPageNum(), link);
+			else
+				activity.clickInControlRegion(); 
+		}
+
+		private void followLink(int page, int link)
+		{
+			PageLinks links = doc.getLinks(page);
+
+			if(links.getUri(link) != null)
+				activity.openUri(links.getUri(link));
+			else if(links.getPage(link) >= 0)
+				setPage(links.getPage(link), links.getTargetY(link));
 		}
 
 		public void run()
@@ -669,10 +1094,25 @@ public class PixmapView extends SurfaceView
 						}
 					}
 
+					float drawZoom, focusX, focusY;
+					synchronized(this)
+					{
+						drawZoom = gestureZoom;
+						focusX = gestureFocusX;
+						focusY = gestureFocusY;
+					}
+
+					//while pinching just stretch what we have around the fingers
+					c.save();
+					if(drawZoom != 1.0f)
+						c.scale(drawZoom, drawZoom, focusX, focusY);
+
 					if(mode == MODE_SINGLE_PAGE)
 						drawSinglePage(c);
 					else
-						drawContinuousPage(c);
+						drawContinuousPage(c, (int)(focusY + (screenHeight - focusY) / drawZoom));
+
+					c.restore();
 				}
 				finally
 				{
@@ -680,13 +1120,16 @@ public class PixmapView extends SurfaceView
 						holder.unlockCanvasAndPost(c);
 				}
 
+				renderer.endFrame();
+
 				//long duration = System.currentTimeMillis() - begin;
 				//Log.v(TAG, String.format("frame : %d ms", duration));
 
+				//also while moving, so the tiles are ready before the pages reach the screen
+				schedulePrefetch();
+
 				if(doSleep)
 				{
-					cacheAdditionalPages();
-
 					try { sleep(3600000); }
 					catch(Exception e) { }
 				}
@@ -758,7 +1201,7 @@ public class PixmapView extends SurfaceView
 			}
 		}
 
-		protected void drawContinuousPage(Canvas c)
+		protected void drawContinuousPage(Canvas c, int bottom)
 		{
 			Paint paintLine = new Paint();
 			paintLine.setStrokeWidth(3);
@@ -812,7 +1255,7 @@ public class PixmapView extends SurfaceView
 			int screenHeightUsed = -cpOffsetY + cp.getPageHeight();
 
 			//do we see any next pages?
-			if(screenHeightUsed < screenHeight)
+			if(screenHeightUsed < bottom)
 			{
 				//adjust the "next" pages
 				for(int i = 1; i < 10; i++)
@@ -823,7 +1266,7 @@ public class PixmapView extends SurfaceView
 					//c.drawLine(0, -np.offsetY - 1, getWidth(), -np.offsetY - 1, paintLine);
 
 					screenHeightUsed += np.getPageHeight();
-					if(screenHeightUsed >= screenHeight)
+					if(screenHeightUsed >= bottom)
 						break;
 				}
 			}
@@ -835,7 +1278,7 @@ public class PixmapView extends SurfaceView
 
 			public PdfPageLayout(int pageNum)
 			{
-				super(activity, doc, pageNum);
+				super(activity, doc, renderer, pageNum);
 
 				//make sure we set this before the setScreenSize, so the page
 				//	can take it into account
@@ -844,15 +1287,22 @@ public class PixmapView extends SurfaceView
 				else
 					setScreenPadding(0);
 
-				setScreenInfo(screenWidth, screenHeight, screenFormat);
+				setPrefetchMargin(prefetchMargin);
+				setHighlights(highlights);
+				setZoom(zoom);
+				setScreenInfo(screenWidth, screenHeight);
 
 				//set the initial offset to the border size
 				offsetY = -pageBorderSize;
 			}
 
+			//where the top left of the page is drawn on the screen
+			public int getBlitX() { return offsetX - panX; }
+			public int getBlitY() { return -offsetY; }
+
 			public void blit(Canvas c, int x, int y)
 			{	
-				super.blit(c, x, -y);
+				super.blit(c, x - panX, -y);
 			}
 
 			public void blit(Canvas c, int startX)
@@ -863,7 +1313,7 @@ public class PixmapView extends SurfaceView
 						offsetY = -((screenHeight - getPageHeight()) / 2);
 				}
 
-				super.blit(c, offsetX + startX, -offsetY);
+				super.blit(c, offsetX + startX - panX, -offsetY);
 			}
 		}
 	}
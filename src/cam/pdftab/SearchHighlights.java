@@ -0,0 +1,41 @@
+package cam.pdftab;
+
+import android.graphics.*;
+import java.util.*;
+
+/**
+ * The boxes (in page units) of the current search hits, by page. Filled in on the UI
+ *	thread as results come in and read by the draw thread.
+ */
+public class SearchHighlights
+{
+	private final HashMap<Integer, Rect[]> pages = new HashMap<Integer, Rect[]>();
+
+	public synchronized void clear()
+	{
+		pages.clear();
+	}
+
+	public synchronized void add(int page, List<SearchIndex.Hit> hits)
+	{
+		Rect[] old = pages.get(page);
+		int start = (old != null) ? old.length : 0;
+
+		Rect[] boxes = new Rect[start + hits.size()];
+		if(old != null)
+			System.arraycopy(old, 0, boxes, 0, start);
+		for(int i = 0; i < hits.size(); i++)
+			boxes[start + i] = hits.get(i).box;
+
+		//replaced, never changed, so the draw thread can keep using what get returned
+		pages.put(page, boxes);
+	}
+
+	/**
+	 * The boxes on the page, null if it has none.
+	 */
+	public synchronized Rect[] get(int page)
+	{
+		return pages.get(page);
+	}
+}
@@ -0,0 +1,479 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.graphics.*;
+import android.util.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * An inverted index of the words of a document, saved under the files dir next to the
+ *	library database. The file is the sorted term list followed by the hits of every term
+ *	back to back, in term order, so a word (or a prefix, which is a run of neighbouring
+ *	terms) is a binary search in memory and one read from the file.
+ */
+public class SearchIndex
+{
+	private static final int FILE_VERSION = 1;
+
+	//page, glyph, then the word's box as left, top, right, bottom shorts in page units
+	private static final int HIT_BYTES = 16;
+
+	//longer "words" are more likely junk from a broken font than anything to search for
+	private static final int MAX_TERM_LENGTH = 48;
+
+	private static final String TAG = "PdfTab";
+
+	private final File file;
+	private final long hitsStart;
+	private final String[] terms;
+	private final int[] termStarts;
+
+	/**
+	 * One word found on a page: the glyph it starts at and its box in page units.
+	 */
+	public static class Hit
+	{
+		public final int page;
+		public final int glyph;
+		public final Rect box;
+
+		public Hit(int page, int glyph, Rect box)
+		{
+			this.page = page;
+			this.glyph = glyph;
+			this.box = box;
+		}
+	}
+
+	//a word of a page while splitting it up
+	static class Word
+	{
+		final String term;
+		final int glyph;
+		final Rect box;
+
+		Word(String term, int glyph, Rect box)
+		{
+			this.term = term;
+			this.glyph = glyph;
+			this.box = box;
+		}
+	}
+
+	public interface Progress
+	{
+		/**
+		 * Called from the building thread after each page, return false to give up.
+		 */
+		public boolean onPage(int page, int numPages);
+	}
+
+	private SearchIndex(File file, long hitsStart, String[] terms, int[] termStarts)
+	{
+		this.file = file;
+		this.hitsStart = hitsStart;
+		this.terms = terms;
+		this.termStarts = termStarts;
+	}
+
+	public static File getFile(Context context, String path)
+	{
+		return new File(new File(context.getFilesDir(), "search"), fileName(path));
+	}
+
+	/**
+	 * Reads the term list of the index of this version of the core's document, null if
+	 *	it hasn't been built (or the file changed since). Reads the disk.
+	 */
+	public static SearchIndex open(Context context, PdfCore core)
+	{
+		File f = getFile(context, core.path);
+		if(!f.exists())
+			return null;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if(in.readInt() != FILE_VERSION || !in.readUTF().equals(core.getCacheKey()))
+				return null;
+
+			int termCount = in.readInt();
+			long hitsStart = in.readLong();
+
+			String[] terms = new String[termCount];
+			int[] termStarts = new int[termCount + 1];
+			for(int i = 0; i < termCount; i++)
+			{
+				terms[i] = in.readUTF();
+				termStarts[i + 1] = termStarts[i] + in.readInt();
+			}
+
+			return new SearchIndex(f, hitsStart, terms, termStarts);
+		}
+		catch(Exception e)
+		{
+			Log.w(TAG, "can't read search index " + f + ": " + e);
+			f.delete();
+			return null;
+		}
+		finally
+		{
+			if(in != null)
+				try { in.close(); } catch(IOException e) { }
+		}
+	}
+
+	/**
+	 * Runs the text extraction over every page of the core and writes the index for it.
+	 *	Returns null if cancelled through progress or the file can't be written.
+	 */
+	public static SearchIndex build(Context context, PdfCore core, Progress progress)
+	{
+		HashMap<String, HitList> index = new HashMap<String, HitList>();
+		long begin = System.currentTimeMillis();
+
+		for(int page = 0; page < core.numPages; page++)
+		{
+			for(Word word : splitPage(getPageText(core, page)))
+			{
+				HitList hits = index.get(word.term);
+				if(hits == null)
+				{
+					hits = new HitList();
+					index.put(word.term, hits);
+				}
+				hits.add(page, word.glyph, word.box);
+			}
+
+			if(progress != null && !progress.onPage(page, core.numPages))
+				return null;
+		}
+
+		Log.v(TAG, String.format("search index: %d terms from %d pages in %d ms",
+			index.size(), core.numPages, System.currentTimeMillis() - begin));
+
+		String[] terms = index.keySet().toArray(new String[index.size()]);
+		Arrays.sort(terms);
+
+		File f = getFile(context, core.path);
+		if(!write(f, core.getCacheKey(), terms, index))
+			return null;
+		return open(context, core);
+	}
+
+	//in page units, the same as the crop boxes
+	static TextSpanData getPageText(PdfCore core, int page)
+	{
+		return core.getTextSpans(page, (int)core.getPageWidth(page), (int)core.getPageHeight(page));
+	}
+
+	/**
+	 * The words of the page in reading order, a word never runs across a line break.
+	 */
+	static List<Word> splitPage(TextSpanData text)
+	{
+		ArrayList<Word> words = new ArrayList<Word>();
+		Rect glyph = new Rect();
+
+		for(int line = 0; line < text.getLineCount(); line++)
+		{
+			int end = text.getLineEnd(line);
+			int g = text.getLineStart(line);
+
+			while(g < end)
+			{
+				if(!Character.isLetterOrDigit(text.getChar(g)))
+				{
+					g++;
+					continue;
+				}
+
+				int start = g;
+				Rect box = new Rect();
+				text.getGlyphBox(g, box);
+				for(g++; g < end && Character.isLetterOrDigit(text.getChar(g)); g++)
+				{
+					text.getGlyphBox(g, glyph);
+					box.union(glyph);
+				}
+
+				if(g - start <= MAX_TERM_LENGTH)
+					words.add(new Word(normalize(text.getText(start, g)), start, box));
+			}
+		}
+
+		return words;
+	}
+
+	/**
+	 * What search would find on this one page: the words starting with one of the
+	 *	(normalized) query words, if the page has every one of them. For searching
+	 *	without an index.
+	 */
+	static List<Hit> matchPage(TextSpanData text, int page, List<String> query)
+	{
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		boolean[] found = new boolean[query.size()];
+
+		for(Word word : splitPage(text))
+		{
+			boolean match = false;
+			for(int i = 0; i < query.size(); i++)
+			{
+				if(word.term.startsWith(query.get(i)))
+				{
+					found[i] = true;
+					match = true;
+				}
+			}
+
+			if(match)
+				hits.add(new Hit(page, word.glyph, word.box));
+		}
+
+		for(boolean f : found)
+		{
+			if(!f)
+				hits.clear();
+		}
+		return hits;
+	}
+
+	private static boolean write(File f, String cacheKey, String[] terms, HashMap<String, HitList> index)
+	{
+		f.getParentFile().mkdirs();
+		File tmp = new File(f.getPath() + ".tmp");
+
+		try
+		{
+			//the term list first, so we know where the hits start
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream h = new DataOutputStream(header);
+			for(String term : terms)
+			{
+				h.writeUTF(term);
+				h.writeInt(index.get(term).size);
+			}
+			h.close();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try
+			{
+				ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+				DataOutputStream p = new DataOutputStream(prefix);
+				p.writeInt(FILE_VERSION);
+				p.writeUTF(cacheKey);
+				p.writeInt(terms.length);
+				p.close();
+
+				out.write(prefix.toByteArray());
+				out.writeLong(prefix.size() + 8 + header.size());
+				out.write(header.toByteArray());
+
+				for(String term : terms)
+				{
+					HitList hits = index.get(term);
+					for(int i = 0; i < hits.size; i++)
+					{
+						out.writeInt(hits.pages[i]);
+						out.writeInt(hits.glyphs[i]);
+						for(int j = 0; j < 4; j++)
+							out.writeShort(hits.boxes[i * 4 + j]);
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			//never leave a half written file where a reader could find it
+			if(!tmp.renameTo(f))
+			{
+				tmp.delete();
+				return false;
+			}
+			return true;
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "can't write search index " + f + ": " + e);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * The hits of the query, every word of which is matched as a prefix, on the pages
+	 *	that have all of its words. Sorted by page, then position on the page.
+	 */
+	public List<Hit> search(String query)
+	{
+		ArrayList<Hit> result = new ArrayList<Hit>();
+		List<String> words = splitWords(query);
+		if(words.size() == 0)
+			return result;
+
+		long begin = System.currentTimeMillis();
+		RandomAccessFile in = null;
+		try
+		{
+			in = new RandomAccessFile(file, "r");
+
+			//pages that have every word so far
+			HashSet<Integer> pages = null;
+			for(String word : words)
+			{
+				List<Hit> hits = readHits(in, normalize(word));
+
+				HashSet<Integer> wordPages = new HashSet<Integer>();
+				for(Hit hit : hits)
+					wordPages.add(hit.page);
+
+				if(pages == null)
+					pages = wordPages;
+				else
+					pages.retainAll(wordPages);
+
+				result.addAll(hits);
+			}
+
+			Iterator<Hit> it = result.iterator();
+			while(it.hasNext())
+			{
+				if(!pages.contains(it.next().page))
+					it.remove();
+			}
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "search index read failed: " + e);
+			result.clear();
+		}
+		finally
+		{
+			if(in != null)
+				try { in.close(); } catch(IOException e) { }
+		}
+
+		Collections.sort(result, HIT_ORDER);
+		Log.v(TAG, String.format("search \"%s\": %d hits in %d ms", query, result.size(),
+			System.currentTimeMillis() - begin));
+		return result;
+	}
+
+	//every term starting with the prefix, which sorting put next to each other
+	private List<Hit> readHits(RandomAccessFile in, String prefix) throws IOException
+	{
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+
+		int first = Arrays.binarySearch(terms, prefix);
+		if(first < 0)
+			first = -first - 1;
+		int last = first;
+		while(last < terms.length && terms[last].startsWith(prefix))
+			last++;
+
+		int count = termStarts[last] - termStarts[first];
+		if(count == 0)
+			return hits;
+
+		byte[] buffer = new byte[count * HIT_BYTES];
+		in.seek(hitsStart + (long)termStarts[first] * HIT_BYTES);
+		in.readFully(buffer);
+
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(buffer));
+		for(int i = 0; i < count; i++)
+		{
+			int page = data.readInt();
+			int glyph = data.readInt();
+			Rect box = new Rect(data.readShort(), data.readShort(), data.readShort(), data.readShort());
+			hits.add(new Hit(page, glyph, box));
+		}
+		return hits;
+	}
+
+	public static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>() {
+		public int compare(Hit a, Hit b) {
+			if(a.page != b.page)
+				return (a.page < b.page) ? -1 : 1;
+			return (a.glyph < b.glyph) ? -1 : ((a.glyph == b.glyph) ? 0 : 1);
+		}
+	};
+
+	public static List<String> splitWords(String query)
+	{
+		ArrayList<String> words = new ArrayList<String>();
+		int i = 0;
+		while(i < query.length())
+		{
+			if(!Character.isLetterOrDigit(query.charAt(i)))
+			{
+				i++;
+				continue;
+			}
+
+			int start = i;
+			while(i < query.length() && Character.isLetterOrDigit(query.charAt(i)))
+				i++;
+			words.add(query.substring(start, i));
+		}
+		return words;
+	}
+
+	//char by char, so a term is always as long as the glyphs it came from
+	public static String normalize(String word)
+	{
+		char[] chars = word.toCharArray();
+		for(int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(chars[i]);
+		return new String(chars);
+	}
+
+	private static String fileName(String path)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(path.getBytes("UTF-8"));
+
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 4);
+			for(byte b : digest)
+				sb.append(String.format("%02x", b & 0xFF));
+			return sb.append(".idx").toString();
+		}
+		catch(Exception e)
+		{
+			return Integer.toHexString(path.hashCode()) + ".idx";
+		}
+	}
+
+	//the hits of one term while building, in arrays rather than an object per hit
+	private static class HitList
+	{
+		int size = 0;
+		int[] pages = new int[4];
+		int[] glyphs = new int[4];
+		short[] boxes = new short[16];
+
+		void add(int page, int glyph, Rect box)
+		{
+			if(size == pages.length)
+			{
+				pages = Arrays.copyOf(pages, size * 2);
+				glyphs = Arrays.copyOf(glyphs, size * 2);
+				boxes = Arrays.copyOf(boxes, size * 8);
+			}
+
+			pages[size] = page;
+			glyphs[size] = glyph;
+			boxes[size * 4] = (short)box.left;
+			boxes[size * 4 + 1] = (short)box.top;
+			boxes[size * 4 + 2] = (short)box.right;
+			boxes[size * 4 + 3] = (short)box.bottom;
+			size++;
+		}
+	}
+}
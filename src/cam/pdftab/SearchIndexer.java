@@ -0,0 +1,92 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.os.*;
+import android.util.*;
+
+/**
+ * Builds the search index of a document on its own thread and document, so the reader
+ *	keeps rendering meanwhile. Reports back on the thread that started it.
+ */
+public class SearchIndexer extends Thread
+{
+	private final String TAG = "PdfTab";
+	private final Handler handler = new Handler();
+	private final Context context;
+	private final String path;
+	private final Listener listener;
+	private volatile boolean cancelled = false;
+
+	public interface Listener
+	{
+		public void onIndexProgress(int page, int numPages);
+
+		/**
+		 * The finished index, null if the document couldn't be indexed.
+		 */
+		public void onIndexed(SearchIndex index);
+	}
+
+	public SearchIndexer(Context context, String path, Listener listener)
+	{
+		super("SearchIndexer");
+		this.context = context.getApplicationContext();
+		this.path = path;
+		this.listener = listener;
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public void run()
+	{
+		PdfCore core;
+		try { core = PdfCore.openSeparate(path); }
+		catch(Exception e)
+		{
+			Log.w(TAG, "search index: " + e);
+			report(null);
+			return;
+		}
+
+		SearchIndex index;
+		try
+		{
+			index = SearchIndex.open(context, core);
+			if(index == null)
+			{
+				index = SearchIndex.build(context, core, new SearchIndex.Progress() {
+					public boolean onPage(final int page, final int numPages) {
+						handler.post(new Runnable() {
+							public void run() {
+								if(!cancelled)
+									listener.onIndexProgress(page, numPages);
+							}
+						});
+						return !cancelled;
+					}
+				});
+			}
+		}
+		finally
+		{
+			core.onDestroy();
+		}
+
+		if(!cancelled)
+			report(index);
+	}
+
+	private void report(final SearchIndex index)
+	{
+		handler.post(new Runnable() {
+			public void run() {
+				if(!cancelled)
+					listener.onIndexed(index);
+			}
+		});
+	}
+}
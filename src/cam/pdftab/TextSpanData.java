@@ -9,59 +9,268 @@ import java.util.*;
 public class TextSpanData
 {
 	private final String TAG = "PdfTab";
-	private String text;
-	private ArrayList<TextSpanArea> spanAreas = new ArrayList<TextSpanArea>();
-	private TextSpanArea currentArea = new TextSpanArea();
 
-	public void setString(String data)
+	//one char and four box coordinates (left, top, right, bottom) per glyph
+	private final char[] text;
+	private final int[] boxes;
+
+	//glyph index where each line starts, plus one final entry for the glyph count
+	private final int[] lineOffsets;
+
+	//union of the glyph boxes of each line, four per line
+	private final int[] lineBounds;
+
+	//for hit testing: the lines touching each horizontal band of the page, built the
+	//	first time it is needed
+	private int bandHeight;
+	private int[][] bands = null;
+
+	public TextSpanData()
+	{
+		this(new char[0], new int[0], new int[] { 0 });
+	}
+
+	//built by the native text extraction in a single call
+	public TextSpanData(char[] text, int[] boxes, int[] lineOffsets)
+	{
+		this.text = text;
+		this.boxes = boxes;
+		this.lineOffsets = lineOffsets;
+		this.lineBounds = new int[getLineCount() * 4];
+
+		for(int line = 0; line < getLineCount(); line++)
+		{
+			int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+			int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+
+			for(int g = lineOffsets[line]; g < lineOffsets[line + 1]; g++)
+			{
+				left = Math.min(left, boxes[g * 4]);
+				top = Math.min(top, boxes[g * 4 + 1]);
+				right = Math.max(right, boxes[g * 4 + 2]);
+				bottom = Math.max(bottom, boxes[g * 4 + 3]);
+			}
+
+			//empty lines get an empty box
+			if(left > right)
+				left = top = right = bottom = 0;
+
+			lineBounds[line * 4] = left;
+			lineBounds[line * 4 + 1] = top;
+			lineBounds[line * 4 + 2] = right;
+			lineBounds[line * 4 + 3] = bottom;
+		}
+	}
+
+	public int getGlyphCount() { return text.length; }
+	public int getLineCount() { return lineOffsets.length - 1; }
+	public int getLineStart(int line) { return lineOffsets[line]; }
+	public int getLineEnd(int line) { return lineOffsets[line + 1]; }
+	public char getChar(int glyph) { return text[glyph]; }
+
+	public void getGlyphBox(int glyph, Rect r)
+	{
+		r.set(boxes[glyph * 4], boxes[glyph * 4 + 1], boxes[glyph * 4 + 2], boxes[glyph * 4 + 3]);
+	}
+
+	public void getLineBounds(int line, Rect r)
+	{
+		r.set(lineBounds[line * 4], lineBounds[line * 4 + 1],
+			lineBounds[line * 4 + 2], lineBounds[line * 4 + 3]);
+	}
+
+	public int getLineOf(int glyph)
+	{
+		//lineOffsets is sorted, so the line is where the glyph would go
+		int line = Arrays.binarySearch(lineOffsets, glyph);
+		if(line < 0)
+			return -line - 2;
+
+		//empty lines start where the next one does, take the last of them
+		while(line + 1 < lineOffsets.length - 1 && lineOffsets[line + 1] == glyph)
+			line++;
+		return line;
+	}
+
+	/**
+	 * The glyph at or nearest to the point, -1 if there is no text. The band lookup is
+	 *	constant time and the glyph within its line a binary search, so this stays quick
+	 *	however dense the page.
+	 */
+	public synchronized int findGlyph(int x, int y)
 	{
-		spanAreas.add(currentArea);
-		currentArea = null;
+		if(getGlyphCount() == 0)
+			return -1;
+		if(bands == null)
+			buildBands();
 
-		Log.v(TAG, String.format("setString with data.length = %d", data.length()));
+		//the band of the point, or the nearest band with any text in it
+		int band = Math.max(0, Math.min(bands.length - 1, y / bandHeight));
+		int[] candidates = bands[band];
+		for(int d = 1; candidates.length == 0 && d < bands.length; d++)
+		{
+			if(band - d >= 0 && bands[band - d].length > 0)
+				candidates = bands[band - d];
+			else if(band + d < bands.length)
+				candidates = bands[band + d];
+		}
+
+		//nearest vertically first, then horizontally, columns can share a band
+		int best = -1, bestDy = 0, bestDx = 0;
+		for(int line : candidates)
+		{
+			int dy = distance(y, lineBounds[line * 4 + 1], lineBounds[line * 4 + 3]);
+			int dx = distance(x, lineBounds[line * 4], lineBounds[line * 4 + 2]);
+			if(best < 0 || dy < bestDy || (dy == bestDy && dx < bestDx))
+			{
+				best = line;
+				bestDy = dy;
+				bestDx = dx;
+			}
+		}
+		if(best < 0)
+			return -1;
+
+		//the last glyph starting left of the point
+		int lo = lineOffsets[best], hi = lineOffsets[best + 1] - 1;
+		while(lo < hi)
+		{
+			int mid = (lo + hi + 1) / 2;
+			if(boxes[mid * 4] <= x)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
 	}
 
-	public void addRect(int left, int top, int right, int bottom)
+	private static int distance(int v, int low, int high)
 	{
-		boolean newLine = false;
+		if(v < low)
+			return low - v;
+		if(v > high)
+			return v - high;
+		return 0;
+	}
 
-		//newline from mupdf
-		if(left == -1 && top == -1 && right == -1 && bottom == -1)
-			newLine = true;
+	private void buildBands()
+	{
+		int lines = 0, totalHeight = 0, bottom = 0;
+		for(int line = 0; line < getLineCount(); line++)
+		{
+			if(getLineStart(line) == getLineEnd(line))
+				continue;
+			lines++;
+			totalHeight += lineBounds[line * 4 + 3] - lineBounds[line * 4 + 1];
+			bottom = Math.max(bottom, lineBounds[line * 4 + 3]);
+		}
+
+		//about a line per band
+		bandHeight = Math.max(1, (lines > 0) ? totalHeight / lines : 1);
+		int count = bottom / bandHeight + 1;
 
-		if(newLine)
+		int[] sizes = new int[count];
+		for(int pass = 0; pass < 2; pass++)
 		{
-			spanAreas.add(currentArea);
-			currentArea = new TextSpanArea();
+			if(pass == 1)
+			{
+				bands = new int[count][];
+				for(int b = 0; b < count; b++)
+					bands[b] = new int[sizes[b]];
+				Arrays.fill(sizes, 0);
+			}
+
+			for(int line = 0; line < getLineCount(); line++)
+			{
+				if(getLineStart(line) == getLineEnd(line))
+					continue;
+
+				int first = Math.max(0, lineBounds[line * 4 + 1] / bandHeight);
+				int last = Math.min(count - 1, lineBounds[line * 4 + 3] / bandHeight);
+				for(int b = first; b <= last; b++)
+				{
+					if(pass == 1)
+						bands[b][sizes[b]] = line;
+					sizes[b]++;
+				}
+			}
 		}
-		else
+	}
+
+	/**
+	 * The word around the glyph as [start, end), just the glyph if it isn't a letter
+	 *	or digit. Never crosses a line.
+	 */
+	public void getWordAt(int glyph, int[] range)
+	{
+		int line = getLineOf(glyph);
+		int start = glyph, end = glyph + 1;
+
+		if(Character.isLetterOrDigit(text[glyph]))
 		{
-			currentArea.addRect(left, top, right, bottom);
+			while(start > lineOffsets[line] && Character.isLetterOrDigit(text[start - 1]))
+				start--;
+			while(end < lineOffsets[line + 1] && Character.isLetterOrDigit(text[end]))
+				end++;
 		}
+
+		range[0] = start;
+		range[1] = end;
 	}
 
-	public void draw(Canvas c, int x, int y)
+	/**
+	 * The text of glyphs [start, end), with a newline at every line break.
+	 */
+	public String getText(int start, int end)
 	{
-		Paint paintDim = new Paint();
-		paintDim.setColor(0x2000FF00);
+		StringBuilder sb = new StringBuilder(end - start + 16);
 
-		for(TextSpanArea area : spanAreas)
+		for(int line = 0; line < getLineCount(); line++)
 		{
-			c.drawRect(area.bounds.left + x, area.bounds.top + y,
-				area.bounds.right + x, area.bounds.bottom + y, paintDim);
+			int from = Math.max(start, lineOffsets[line]);
+			int to = Math.min(end, lineOffsets[line + 1]);
+			if(from >= to)
+				continue;
+
+			sb.append(text, from, to - from);
+			if(to == lineOffsets[line + 1] && to < end)
+				sb.append('\n');
 		}
+
+		return sb.toString();
+	}
+
+	public String getText()
+	{
+		return getText(0, getGlyphCount());
 	}
 
-	private class TextSpanArea
+	/**
+	 * Fills the glyphs [start, end), one box per line, offset by x, y.
+	 */
+	public void drawRange(Canvas c, int x, int y, int start, int end, Paint paint)
 	{
-		private ArrayList<Rect> rects = new ArrayList<Rect>();
-		protected Rect bounds = new Rect();
+		Rect box = new Rect();
+		Rect glyph = new Rect();
 
-		public void addRect(int left, int top, int right, int bottom)
+		for(int line = getLineOf(start); line >= 0 && line < getLineCount(); line++)
 		{
-			Rect r = new Rect(left, top, right, bottom);
-			bounds.union(r);
-			rects.add(r);
+			int from = Math.max(start, lineOffsets[line]);
+			int to = Math.min(end, lineOffsets[line + 1]);
+			if(from >= end)
+				break;
+			if(from >= to)
+				continue;
+
+			getGlyphBox(from, box);
+			for(int g = from + 1; g < to; g++)
+			{
+				getGlyphBox(g, glyph);
+				box.union(glyph);
+			}
+
+			box.offset(x, y);
+			c.drawRect(box, paint);
 		}
 	}
 }
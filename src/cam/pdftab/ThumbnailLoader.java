@@ -0,0 +1,199 @@
+package cam.pdftab;
+
+import android.content.*;
+import android.graphics.*;
+import android.os.*;
+import android.util.*;
+import android.widget.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * First-page thumbnails for the file list. Rendered in the background only for the rows
+ *	that are asked for, kept in memory and on disk keyed by path and mtime.
+ */
+public class ThumbnailLoader
+{
+	private final String TAG = "PdfTab";
+	private final Handler handler = new Handler();
+	private final ThreadPoolExecutor executor;
+	private final DiskTileCache disk;
+	private final int width;
+
+	//which view is waiting for which thumbnail, the newest request for a key wins
+	private final HashMap<String, ImageView> targets = new HashMap<String, ImageView>();
+	private final HashMap<String, Future<?>> pending = new HashMap<String, Future<?>>();
+	private final ThumbnailCache memory = new ThumbnailCache();
+	private int maxBytes = 4 << 20;
+	private int memoryBytes = 0;
+
+	public ThumbnailLoader(Context context, int width)
+	{
+		this.width = width;
+		this.disk = new DiskTileCache(new File(context.getCacheDir(), "thumbs"), 8 << 20);
+
+		//the rows the user just scrolled to are the ones to do first
+		executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+			new LinkedBlockingDeque<Runnable>() {
+				@Override public boolean offer(Runnable r) {
+					return super.offerFirst(r);
+				}
+			}, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ThumbnailLoader");
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	}
+
+	/**
+	 * Shows the thumbnail in the view, or the placeholder until it has been rendered.
+	 *	Safe to call again on a recycled view, the old request is dropped.
+	 */
+	public void load(File file, long modified, ImageView view, int placeholder)
+	{
+		String key = file.getPath() + "|" + modified;
+
+		Object old = view.getTag();
+		if(old instanceof String && !old.equals(key))
+			cancel((String)old, view);
+		view.setTag(key);
+
+		Bitmap thumb;
+		synchronized(this) { thumb = memory.get(key); }
+		if(thumb != null)
+		{
+			view.setImageBitmap(thumb);
+			return;
+		}
+
+		view.setImageResource(placeholder);
+
+		synchronized(this)
+		{
+			targets.put(key, view);
+			if(!pending.containsKey(key) && !executor.isShutdown())
+				pending.put(key, executor.submit(new ThumbnailJob(file.getPath(), key)));
+		}
+	}
+
+	/**
+	 * The view isn't going to show a thumbnail anymore, a directory for instance.
+	 */
+	public void clear(ImageView view)
+	{
+		Object old = view.getTag();
+		if(old instanceof String)
+			cancel((String)old, view);
+		view.setTag(null);
+	}
+
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			for(Future<?> f : pending.values())
+				f.cancel(false);
+			pending.clear();
+			targets.clear();
+		}
+
+		executor.shutdown();
+	}
+
+	private synchronized void cancel(String key, ImageView view)
+	{
+		if(targets.get(key) != view)
+			return;
+
+		targets.remove(key);
+		Future<?> f = pending.remove(key);
+		if(f != null)
+			f.cancel(false);
+	}
+
+	private synchronized boolean isWanted(String key)
+	{
+		return pending.containsKey(key);
+	}
+
+	private void thumbnailDone(final String key, final Bitmap thumb)
+	{
+		synchronized(this)
+		{
+			pending.remove(key);
+			if(thumb != null)
+				memory.put(key, thumb);
+		}
+
+		handler.post(new Runnable() {
+			public void run() {
+				ImageView view;
+				synchronized(ThumbnailLoader.this) { view = targets.remove(key); }
+
+				//the row may have been recycled for another file since
+				if(view != null && thumb != null && key.equals(view.getTag()))
+					view.setImageBitmap(thumb);
+			}
+		});
+	}
+
+	private class ThumbnailJob implements Runnable
+	{
+		private final String path;
+		private final String key;
+
+		public ThumbnailJob(String path, String key)
+		{
+			this.path = path;
+			this.key = key;
+		}
+
+		public void run()
+		{
+			if(!isWanted(key))
+				return;
+
+			Bitmap thumb = disk.read(key, Bitmap.Config.RGB_565);
+			if(thumb == null)
+			{
+				thumb = PdfCore.renderThumbnail(path, width, Bitmap.Config.RGB_565);
+				if(thumb != null)
+					disk.write(key, thumb);
+				else
+					Log.w(TAG, "no thumbnail for " + path);
+			}
+
+			thumbnailDone(key, thumb);
+		}
+	}
+
+	private class ThumbnailCache extends LinkedHashMap<String, Bitmap>
+	{
+		public ThumbnailCache()
+		{
+			super(32, 0.75f, true);
+		}
+
+		@Override public Bitmap put(String key, Bitmap thumb)
+		{
+			Bitmap old = super.put(key, thumb);
+			memoryBytes += thumb.getRowBytes() * thumb.getHeight();
+			if(old != null)
+				memoryBytes -= old.getRowBytes() * old.getHeight();
+
+			//views may still be showing the evicted ones, so leave them to the GC
+			Iterator<Bitmap> it = values().iterator();
+			while(memoryBytes > maxBytes && size() > 1 && it.hasNext())
+			{
+				Bitmap b = it.next();
+				memoryBytes -= b.getRowBytes() * b.getHeight();
+				it.remove();
+			}
+
+			return old;
+		}
+	}
+}
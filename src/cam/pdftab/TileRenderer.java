@@ -0,0 +1,515 @@
+package cam.pdftab;
+
+import android.graphics.*;
+import android.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TileRenderer
+{
+	public static final int TILE_SIZE = 256;
+
+	//writes waiting for the disk beyond this are dropped, each holds a copy of its tile
+	private static final int MAX_PENDING_WRITES = 16;
+
+	//levels from ComponentCallbacks2, which isn't in the SDK we build against
+	public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+	public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+	/**
+	 * Drops the least recently drawn tiles first.
+	 */
+	public static final EvictionPolicy EVICT_LRU = new EvictionPolicy() {
+		public int choosePage(List<Integer> pages, int currentPage) {
+			return pages.get(0);
+		}
+	};
+
+	/**
+	 * Drops the tiles of the page farthest from the current one first, the least recently
+	 *	drawn of them if there is a tie.
+	 */
+	public static final EvictionPolicy EVICT_DISTANCE = new EvictionPolicy() {
+		public int choosePage(List<Integer> pages, int currentPage) {
+			int chosen = pages.get(0);
+			for(int page : pages)
+			{
+				if(Math.abs(page - currentPage) > Math.abs(chosen - currentPage))
+					chosen = page;
+			}
+			return chosen;
+		}
+	};
+
+	private final String TAG = "PdfTab";
+	private final PdfCore doc;
+	private final Listener listener;
+	private final ThreadPoolExecutor executor;
+	private final ThreadPoolExecutor writer;
+	private final HashMap<TileKey, Future<?>> pending = new HashMap<TileKey, Future<?>>();
+	private final TileCache tiles = new TileCache();
+	private final BitmapPool pool = new BitmapPool(4 << 20);
+
+	//evicted tiles the draw thread may still be drawing, they go to the pool at the end
+	//	of the frame
+	private final ArrayList<Bitmap> retired = new ArrayList<Bitmap>();
+	private DiskTileCache disk = null;
+	private Bitmap.Config config = Bitmap.Config.ARGB_8888;
+	private EvictionPolicy policy = EVICT_DISTANCE;
+	private int currentPage = 0;
+	private int maxBytes = 16 << 20;
+	private int cacheBytes = 0;
+
+	//counts the draw thread's frames, tiles handed out in this one or the one before
+	//	are on the screen and never evicted
+	private int frame = 0;
+
+	public interface Listener
+	{
+		public void onTileReady(int page);
+	}
+
+	public interface EvictionPolicy
+	{
+		/**
+		 * Picks the page to take a tile from when the cache is over budget. pages holds
+		 *	every page with cached tiles, least recently drawn first.
+		 */
+		public int choosePage(List<Integer> pages, int currentPage);
+	}
+
+	public TileRenderer(PdfCore doc, Listener listener)
+	{
+		this.doc = doc;
+		this.listener = listener;
+
+		//one thread, every render of the document holds its lock in mupdf (which shares
+		//	fonts and the glyph cache between pages), more would only queue on it. The
+		//	newest requests are the ones on screen right now, so serve them first
+		executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+			new LifoQueue(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "TileRenderer");
+				}
+			});
+
+		//PNG compression is slow, the renders shouldn't wait for it
+		writer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TileWriter");
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+	}
+
+	public synchronized void setFormat(int format)
+	{
+		Bitmap.Config newConfig;
+		if(format == PixelFormat.RGB_565)
+			newConfig = Bitmap.Config.RGB_565;
+		else
+			newConfig = Bitmap.Config.ARGB_8888;
+
+		if(newConfig != config)
+		{
+			config = newConfig;
+			tiles.trim(0);
+		}
+	}
+
+	/**
+	 * Tiles are looked up here before rendering and saved here after.
+	 */
+	public synchronized void setDiskCache(DiskTileCache disk)
+	{
+		this.disk = disk;
+	}
+
+	public BitmapPool getBitmapPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Bounds the rendered tiles by the memory their pixels take.
+	 */
+	public synchronized void setMaxBytes(int bytes)
+	{
+		maxBytes = bytes;
+		tiles.trim(maxBytes);
+	}
+
+	public synchronized void setEvictionPolicy(EvictionPolicy policy)
+	{
+		this.policy = policy;
+	}
+
+	/**
+	 * The page the reader is on, for the distance based eviction.
+	 */
+	public synchronized void setCurrentPage(int page)
+	{
+		currentPage = page;
+	}
+
+	public synchronized int getCacheBytes()
+	{
+		return cacheBytes;
+	}
+
+	/**
+	 * Gives memory back when the system asks, the budget itself stays the same so the
+	 *	cache refills once we are drawing again.
+	 */
+	public synchronized void trimMemory(int level)
+	{
+		pool.clear();
+
+		if(level >= TRIM_MEMORY_UI_HIDDEN)
+			tiles.trim(0);
+		else if(level >= TRIM_MEMORY_RUNNING_LOW)
+			tiles.trim(maxBytes / 2);
+
+		//there may not be another frame to pool them, and a frame still drawing them
+		//	keeps them alive until it is done
+		retired.clear();
+	}
+
+	/**
+	 * Called by the draw thread once a frame has been posted, no tile it got from here
+	 *	is drawn after this. Only now can the tiles evicted meanwhile be reused.
+	 */
+	public synchronized void endFrame()
+	{
+		frame++;
+
+		for(Bitmap b : retired)
+			pool.put(b);
+		retired.clear();
+	}
+
+	/**
+	 * Returns the tile if it has been rendered, otherwise queues it and returns null.
+	 *	Never blocks on mupdf. Only persistent tiles, the ones at the scale a document
+	 *	opens at, go through the disk cache; other zooms are rarely seen twice.
+	 */
+	public synchronized Bitmap getTile(int page, float scale, int pageW, int pageH,
+		int tileX, int tileY, boolean persistent)
+	{
+		TileKey key = new TileKey(page, scale, tileX, tileY);
+
+		Tile tile = tiles.get(key);
+		if(tile != null)
+		{
+			tile.frame = frame;
+			return tile.bitmap;
+		}
+
+		if(!pending.containsKey(key) && !executor.isShutdown())
+			pending.put(key, executor.submit(new TileJob(key, pageW, pageH, persistent)));
+		return null;
+	}
+
+	/**
+	 * Returns the tile only if it is already rendered, nothing gets queued.
+	 */
+	public synchronized Bitmap peekTile(int page, float scale, int tileX, int tileY)
+	{
+		Tile tile = tiles.get(new TileKey(page, scale, tileX, tileY));
+		if(tile == null)
+			return null;
+
+		tile.frame = frame;
+		return tile.bitmap;
+	}
+
+	/**
+	 * Drops any queued tiles for the page that haven't started rendering yet.
+	 */
+	public synchronized void cancelPage(int page)
+	{
+		Iterator<Map.Entry<TileKey, Future<?>>> it = pending.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<TileKey, Future<?>> e = it.next();
+			if(e.getKey().page == page)
+			{
+				e.getValue().cancel(false);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Only once the draw thread has stopped.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			for(Future<?> f : pending.values())
+				f.cancel(false);
+			pending.clear();
+			tiles.trim(0);
+			retired.clear();
+			pool.clear();
+		}
+
+		//the queued writes hold copies of their tiles, they can finish on their own
+		writer.shutdown();
+
+		//wait for the in-flight render however long it takes, the document is closed
+		//	right after this
+		executor.shutdown();
+		boolean interrupted = false;
+		while(!executor.isTerminated())
+		{
+			try { executor.awaitTermination(1, TimeUnit.SECONDS); }
+			catch(InterruptedException e) { interrupted = true; }
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private synchronized boolean isWanted(TileKey key)
+	{
+		return pending.containsKey(key);
+	}
+
+	private synchronized void tileDone(TileKey key, Bitmap tile)
+	{
+		if(pending.remove(key) != null && tile != null)
+		{
+			tiles.put(key, new Tile(tile, frame));
+			cacheBytes += sizeOf(tile);
+			tiles.trim(maxBytes);
+		}
+		else
+			pool.put(tile);
+	}
+
+	private class TileJob implements Runnable
+	{
+		private final TileKey key;
+		private final int pageW, pageH;
+		private final boolean persistent;
+
+		public TileJob(TileKey key, int pageW, int pageH, boolean persistent)
+		{
+			this.key = key;
+			this.pageW = pageW;
+			this.pageH = pageH;
+			this.persistent = persistent;
+		}
+
+		public void run()
+		{
+			if(!isWanted(key))
+				return;
+
+			int patchX = key.tileX * TILE_SIZE;
+			int patchY = key.tileY * TILE_SIZE;
+			int patchW = Math.min(TILE_SIZE, pageW - patchX);
+			int patchH = Math.min(TILE_SIZE, pageH - patchY);
+			Bitmap tile = null;
+
+			if(patchW > 0 && patchH > 0)
+			{
+				Bitmap.Config tileConfig;
+				DiskTileCache tileDisk;
+				synchronized(TileRenderer.this)
+				{
+					tileConfig = config;
+					tileDisk = persistent ? disk : null;
+				}
+
+				tile = pool.get(patchW, patchH, tileConfig);
+
+				//the crop only decides which tiles are asked for, the scale already
+				//	depends on it, so it doesn't have to be part of the key
+				String diskKey = doc.getCacheKey() + "|" + key.page + "|" + key.scale + "|" +
+					key.tileX + "|" + key.tileY + "|" + tileConfig;
+
+				if(tileDisk == null || !tileDisk.read(diskKey, tile))
+				{
+					doc.drawPage(key.page, tile, pageW, pageH, patchX, patchY);
+
+					if(tileDisk != null && isWanted(key))
+						queueWrite(tileDisk, diskKey, tile);
+				}
+			}
+
+			tileDone(key, tile);
+			listener.onTileReady(key.page);
+
+			//read while the page's objects are fresh in the xref cache, so a tap on the
+			//	links never has to wait for the document
+			if(!doc.hasLinks(key.page))
+				doc.getLinks(key.page);
+		}
+	}
+
+	/**
+	 * Saves a copy of the tile in the background, once it is in the cache it may be
+	 *	evicted and reused under the writer.
+	 */
+	private void queueWrite(final DiskTileCache tileDisk, final String diskKey, Bitmap tile)
+	{
+		//behind already, it will be rendered again next time
+		if(writer.getQueue().size() >= MAX_PENDING_WRITES)
+			return;
+
+		final Bitmap copy = tile.copy(tile.getConfig(), false);
+		if(copy == null)
+			return;
+
+		try
+		{
+			writer.execute(new Runnable() {
+				public void run() {
+					tileDisk.write(diskKey, copy);
+					copy.recycle();
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			copy.recycle();
+		}
+	}
+
+	private static int sizeOf(Bitmap b)
+	{
+		return b.getRowBytes() * b.getHeight();
+	}
+
+	private static class Tile
+	{
+		public final Bitmap bitmap;
+
+		//the frame it was last handed out in
+		public int frame;
+
+		public Tile(Bitmap bitmap, int frame)
+		{
+			this.bitmap = bitmap;
+			this.frame = frame;
+		}
+	}
+
+	private class TileCache extends LinkedHashMap<TileKey, Tile>
+	{
+		public TileCache()
+		{
+			super(64, 0.75f, true);
+		}
+
+		/**
+		 * Evicts tiles, as the policy picks them, until the cache fits in bytes. They are
+		 *	retired, not pooled, the current frame may be drawing them. The tiles on the
+		 *	screen stay even over budget, zoomed in far enough they alone may not fit.
+		 */
+		public void trim(int bytes)
+		{
+			if(bytes <= 0)
+			{
+				for(Tile t : values())
+					retired.add(t.bitmap);
+				clear();
+				cacheBytes = 0;
+				return;
+			}
+
+			if(cacheBytes <= bytes)
+				return;
+
+			//the pages with tiles that can go, least recently drawn first, and those
+			//	tiles of each page in the same order; one pass, it runs under the lock
+			//	getTile takes on the draw thread
+			ArrayList<Integer> pages = new ArrayList<Integer>();
+			HashMap<Integer, ArrayList<TileKey>> byPage = new HashMap<Integer, ArrayList<TileKey>>();
+			for(Map.Entry<TileKey, Tile> e : entrySet())
+			{
+				if(!isEvictable(e.getValue()))
+					continue;
+
+				ArrayList<TileKey> keys = byPage.get(e.getKey().page);
+				if(keys == null)
+				{
+					keys = new ArrayList<TileKey>();
+					byPage.put(e.getKey().page, keys);
+					pages.add(e.getKey().page);
+				}
+				keys.add(e.getKey());
+			}
+
+			//a page at a time, all its tiles before the policy picks the next
+			while(cacheBytes > bytes && pages.size() > 0)
+			{
+				Integer victim = policy.choosePage(pages, currentPage);
+				pages.remove(victim);
+
+				for(TileKey key : byPage.get(victim))
+				{
+					if(cacheBytes <= bytes)
+						break;
+
+					Tile t = remove(key);
+					cacheBytes -= sizeOf(t.bitmap);
+					retired.add(t.bitmap);
+				}
+			}
+		}
+
+		private boolean isEvictable(Tile t)
+		{
+			//the frame being drawn and the one last posted
+			return t.frame < frame - 1;
+		}
+	}
+
+	private static class LifoQueue extends LinkedBlockingDeque<Runnable>
+	{
+		@Override public boolean offer(Runnable r)
+		{
+			return super.offerFirst(r);
+		}
+	}
+
+	private static class TileKey
+	{
+		public final int page;
+		public final float scale;
+		public final int tileX, tileY;
+
+		public TileKey(int page, float scale, int tileX, int tileY)
+		{
+			this.page = page;
+			this.scale = scale;
+			this.tileX = tileX;
+			this.tileY = tileY;
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if(!(o instanceof TileKey))
+				return false;
+
+			TileKey k = (TileKey)o;
+			return k.page == page && k.tileX == tileX && k.tileY == tileY &&
+				Float.floatToIntBits(k.scale) == Float.floatToIntBits(scale);
+		}
+
+		@Override public int hashCode()
+		{
+			int h = page;
+			h = h * 31 + Float.floatToIntBits(scale);
+			h = h * 31 + tileX;
+			h = h * 31 + tileY;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package cam.pdftab;
+
+import android.app.*;
+import android.content.*;
+import android.os.*;
+import android.view.*;
+import android.widget.*;
+import android.util.*;
+
+/**
+ * The document's bookmarks as an indented list. Picking one finishes with the page as
+ *	the "page" extra, for PdfActivity to jump to.
+ */
+public class TocActivity extends ListActivity
+{
+	private final String TAG = "PdfTab";
+	private final int indentDp = 24;
+	private Handler handler = new Handler();
+	private Outline outline = null;
+	private int indent;
+
+	@Override public void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+
+		indent = (int)(indentDp * getResources().getDisplayMetrics().density);
+		final int currentPage = getIntent().getIntExtra("pageIndex", 0);
+		final PdfCore core = PdfActivity.getPdfCore();
+
+		Outline cached = Outline.peek(core);
+		if(cached != null)
+		{
+			show(cached, currentPage);
+			return;
+		}
+
+		//first look at this document, the outline comes off the disk or out of the file
+		final Context context = getApplicationContext();
+		new Thread("Outline") {
+			public void run() {
+				final Outline loaded = Outline.get(context, core);
+				handler.post(new Runnable() {
+					public void run() {
+						if(!isFinishing())
+							show(loaded, currentPage);
+					}
+				});
+			}
+		}.start();
+	}
+
+	private void show(Outline loaded, int currentPage)
+	{
+		if(loaded.getCount() == 0)
+		{
+			Toast.makeText(this, "This document has no table of contents", Toast.LENGTH_SHORT).show();
+			finish();
+			return;
+		}
+
+		outline = loaded;
+		setListAdapter(new OutlineAdapter());
+
+		int entry = outline.findEntry(currentPage);
+		if(entry >= 0)
+			getListView().setSelection(entry);
+	}
+
+	@Override protected void onListItemClick(ListView l, View v, int position, long id)
+	{
+		int page = outline.getPage(position);
+		if(page < 0)
+			return;
+
+		Intent result = new Intent();
+		result.putExtra("page", page);
+		setResult(RESULT_OK, result);
+		finish();
+	}
+
+	//straight off the outline's arrays, a manual can have thousands of entries
+	private class OutlineAdapter extends BaseAdapter
+	{
+		public int getCount() { return outline.getCount(); }
+		public Object getItem(int position) { return outline.getTitle(position); }
+		public long getItemId(int position) { return position; }
+
+		@Override public boolean isEnabled(int position)
+		{
+			return outline.getPage(position) >= 0;
+		}
+
+		@Override public View getView(int position, View convertView, ViewGroup parent)
+		{
+			TextView row = (TextView)convertView;
+			if(row == null)
+				row = (TextView)getLayoutInflater().inflate(android.R.layout.simple_list_item_1, null);
+
+			row.setText(outline.getTitle(position));
+			row.setPadding(indent * (outline.getLevel(position) + 1), row.getPaddingTop(),
+				row.getPaddingRight(), row.getPaddingBottom());
+			return row;
+		}
+	}
+}